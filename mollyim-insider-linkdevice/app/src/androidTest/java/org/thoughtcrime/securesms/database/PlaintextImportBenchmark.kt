@@ -0,0 +1,97 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import android.os.Debug
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.Benchmark
+import java.io.File
+
+/**
+ * Throughput and allocation benchmark of the plaintext import into the Signal database, on
+ * generated data. Only runs with the instrumentation argument benchmark=true, for example
+ *
+ *   ./gradlew :app:connectedProdGmsWebsiteInstrumentationAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+ *
+ * Reports are logged and appended to benchmarks/plaintext-import.jsonl in the external files dir
+ * of the app. Allocations are counted by the runtime over all threads.
+ */
+@RunWith(AndroidJUnit4::class)
+class PlaintextImportBenchmark {
+
+  private lateinit var context: Context
+  private lateinit var source: File
+  private lateinit var benchmark: Benchmark
+
+  @Before
+  fun setUp() {
+    val arguments = InstrumentationRegistry.getArguments()
+    assumeTrue("Benchmarks run with the argument benchmark=true", arguments.getString("benchmark") == "true")
+
+    context = ApplicationDependencies.getApplication()
+    source = File.createTempFile("plaintext", ".xml", context.cacheDir)
+    benchmark = Benchmark("plaintext-import", 0, arguments.getString("benchmark.rounds")?.toInt() ?: 3, ::allocatedBytes)
+  }
+
+  @After
+  fun tearDown() {
+    if (!::benchmark.isInitialized) {
+      return
+    }
+
+    ImportCheckpoint.forFile(context, CHECKPOINT_KEY, source).clear()
+    source.delete()
+    benchmark.appendReports(File(context.getExternalFilesDir(null), "benchmarks/plaintext-import.jsonl"))
+  }
+
+  @Test
+  fun importPlaintext() {
+    val messages = InstrumentationRegistry.getArguments().getString("benchmark.messages")?.toInt() ?: 100_000
+    val self = Recipient.external(context, SELF_ADDRESS).id.toLong()
+    val items = PlaintextBackupDataset.generate(messages, 200, self, 42)
+
+    benchmark.measure(
+      "PlaintextImportPipeline",
+      items.size.toLong(),
+      {
+        SignalDatabase.messages.deleteAllThreads()
+        SignalDatabase.threads.deleteAllConversations()
+      },
+      {
+        PlaintextImportPipeline(
+          context,
+          ListReader(items),
+          SignalDatabase.messages,
+          SignalDatabase.threads,
+          ImportCheckpoint.forFile(context, CHECKPOINT_KEY, source),
+          PlaintextBackupImporter.DEFAULT_CHUNK_SIZE,
+          ImportExportProgress.none()
+        ).run(0)
+      }
+    )
+  }
+
+  private class ListReader(private val items: List<XmlBackup.XmlBackupItem>) : PlaintextBackupReader {
+    private val iterator = items.iterator()
+
+    override fun getCount(): Long = items.size.toLong()
+
+    override fun getNext(): XmlBackup.XmlBackupItem? = if (iterator.hasNext()) iterator.next() else null
+  }
+
+  companion object {
+    private const val SELF_ADDRESS = "+15555550100"
+    private const val CHECKPOINT_KEY = "benchmark_plaintext_import_checkpoint"
+
+    private fun allocatedBytes(): Long {
+      return Debug.getRuntimeStat("art.gc.bytes-allocated")?.toLongOrNull() ?: -1
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.requireInt
+import org.signal.core.util.requireString
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.recipients.Recipient
+import java.io.File
+
+@RunWith(AndroidJUnit4::class)
+class PlaintextImportPipelineTest {
+
+  private lateinit var context: Context
+  private lateinit var source: File
+
+  @Before
+  fun setUp() {
+    context = ApplicationDependencies.getApplication()
+    source = File.createTempFile("plaintext", ".xml", context.cacheDir)
+
+    SignalDatabase.messages.deleteAllThreads()
+    SignalDatabase.threads.deleteAllConversations()
+  }
+
+  @After
+  fun tearDown() {
+    ImportCheckpoint.forFile(context, CHECKPOINT_KEY, source).clear()
+    source.delete()
+  }
+
+  @Test
+  fun givenABackupForANewAddress_whenIImport_thenIExpectItsThreadToBeListed() {
+    val self = Recipient.external(context, SELF_ADDRESS).id.toLong()
+    val items = listOf(
+      XmlBackup.XmlBackupItem(0, ADDRESS, null, 1000, 1, null, "first", null, 1, -1, "SMS", self),
+      XmlBackup.XmlBackupItem(0, ADDRESS, null, 2000, 1, null, "second", null, 1, -1, "SMS", self)
+    )
+
+    importItems(items, chunkSize = 1)
+
+    val threadId = SignalDatabase.threads.getThreadIdFor(Recipient.external(context, ADDRESS).id)
+    assertNotNull(threadId)
+
+    SignalDatabase.rawDatabase.query(
+      ThreadTable.TABLE_NAME,
+      arrayOf(ThreadTable.ACTIVE, ThreadTable.ARCHIVED, ThreadTable.MEANINGFUL_MESSAGES, ThreadTable.SNIPPET),
+      "${ThreadTable.ID} = ?",
+      arrayOf(threadId.toString()),
+      null,
+      null,
+      null
+    ).use { cursor ->
+      assertTrue(cursor.moveToFirst())
+      assertEquals(1, cursor.requireInt(ThreadTable.ACTIVE))
+      assertEquals(0, cursor.requireInt(ThreadTable.ARCHIVED))
+      assertTrue(cursor.requireInt(ThreadTable.MEANINGFUL_MESSAGES) > 0)
+      assertEquals("second", cursor.requireString(ThreadTable.SNIPPET))
+    }
+  }
+
+  private fun importItems(items: List<XmlBackup.XmlBackupItem>, chunkSize: Int) {
+    val reader = object : PlaintextBackupReader {
+      private val iterator = items.iterator()
+
+      override fun getCount(): Long = items.size.toLong()
+
+      override fun getNext(): XmlBackup.XmlBackupItem? = if (iterator.hasNext()) iterator.next() else null
+    }
+
+    PlaintextImportPipeline(
+      context,
+      reader,
+      SignalDatabase.messages,
+      SignalDatabase.threads,
+      ImportCheckpoint.forFile(context, CHECKPOINT_KEY, source),
+      chunkSize,
+      ImportExportProgress.none()
+    ).run(0)
+  }
+
+  companion object {
+    private const val ADDRESS = "+15555550101"
+    private const val SELF_ADDRESS = "+15555550100"
+    private const val CHECKPOINT_KEY = "test_plaintext_import_checkpoint"
+  }
+}
@@ -0,0 +1,116 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.readToSingleInt
+import org.signal.core.util.select
+import org.thoughtcrime.securesms.database.whatsapp.WaDbGenerator
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.io.File
+import java.util.UUID
+import android.database.sqlite.SQLiteDatabase as AndroidSQLiteDatabase
+
+@RunWith(AndroidJUnit4::class)
+class WhatsappBackupImporterTest {
+
+  private lateinit var context: Context
+  private lateinit var msgstore: File
+
+  @Before
+  fun setUp() {
+    context = ApplicationDependencies.getApplication()
+    msgstore = File(context.cacheDir, "msgstore.db")
+
+    // The importer stores self as the receiver of every message
+    SignalStore.account().setE164("+15555550100")
+    SignalStore.account().setAci(ACI.from(UUID.randomUUID()))
+
+    SignalDatabase.messages.deleteAllThreads()
+    SignalDatabase.threads.deleteAllConversations()
+  }
+
+  @After
+  fun tearDown() {
+    ImportCheckpoint.forFile(context, CHECKPOINT_KEY, msgstore).clear()
+    msgstore.delete()
+  }
+
+  @Test
+  fun givenAGeneratedMsgstore_whenIImport_thenIExpectEveryMessageInAListedThread() {
+    val result = generate()
+
+    importMsgstore()
+
+    assertEquals(result.messages, SignalDatabase.messages.getMessageCount())
+    assertEquals(readChatAddresses().size, countListedThreads())
+  }
+
+  @Test
+  fun givenAnImportedMsgstore_whenIImportItAgain_thenIExpectNoDuplicates() {
+    val result = generate()
+
+    importMsgstore()
+    importMsgstore()
+
+    assertEquals(result.messages, SignalDatabase.messages.getMessageCount())
+  }
+
+  // Group messages need their Signal groups and media needs the files, so only one-to-one text chats
+  private fun generate(): WaDbGenerator.Result {
+    return WaDbGenerator.builder()
+      .messages(MESSAGES)
+      .chats(10)
+      .contacts(10)
+      .groupRatio(0.0)
+      .mediaRatio(0.0)
+      .seed(5)
+      .build()
+      .generate(msgstore)
+  }
+
+  private fun importMsgstore() {
+    WhatsappBackupImporter.importWhatsapp(
+      context,
+      AndroidSQLiteDatabase.openDatabase(msgstore.absolutePath, null, AndroidSQLiteDatabase.OPEN_READONLY),
+      ImportCheckpoint.forFile(context, CHECKPOINT_KEY, msgstore),
+      ImportExportProgress.none(),
+      false,
+      true,
+      false,
+      CHUNK_SIZE
+    )
+  }
+
+  private fun readChatAddresses(): Set<String> {
+    val db = AndroidSQLiteDatabase.openDatabase(msgstore.absolutePath, null, AndroidSQLiteDatabase.OPEN_READONLY)
+    try {
+      WhatsappBackup(db).use { backup ->
+        return generateSequence { backup.getNext() }.mapNotNull { it.address }.toSet()
+      }
+    } finally {
+      db.close()
+    }
+  }
+
+  private fun countListedThreads(): Int {
+    return SignalDatabase.rawDatabase
+      .select("COUNT(*)")
+      .from(ThreadTable.TABLE_NAME)
+      .where("${ThreadTable.ACTIVE} = 1 AND ${ThreadTable.ARCHIVED} = 0")
+      .run()
+      .readToSingleInt()
+  }
+
+  companion object {
+    private const val MESSAGES = 500
+    private const val CHUNK_SIZE = 100
+    private const val CHECKPOINT_KEY = "test_whatsapp_import_checkpoint"
+  }
+}
@@ -18,6 +18,7 @@ import androidx.fragment.app.Fragment;
 import androidx.appcompat.app.AlertDialog;
 
 import android.provider.Settings;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,6 +28,7 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.backup.BackupDialog;
 import org.thoughtcrime.securesms.conversationlist.ConversationListFragment;
 import org.thoughtcrime.securesms.database.EncryptedBackupExporter;
+import org.thoughtcrime.securesms.database.ImportExportProgress;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.database.PlaintextBackupExporter;
 import org.thoughtcrime.securesms.database.PlaintextBackupImporter;
@@ -124,7 +126,7 @@ public class ImportExportFragment extends Fragment {
   }
 
   @SuppressLint("StaticFieldLeak")
-  public class ImportWhatsappBackupTask extends AsyncTask<Void, Void, Integer> {
+  public class ImportWhatsappBackupTask extends AsyncTask<Void, ImportExportProgress.Snapshot, Integer> {
 
     private final boolean importGroups;
     private final boolean importMedia;
@@ -147,6 +149,11 @@ public class ImportExportFragment extends Fragment {
       progressDialog.show();
     }
 
+    @Override
+    protected void onProgressUpdate(ImportExportProgress.Snapshot... progress) {
+      showProgress(progressDialog, R.string.ImportFragment_import_whatsapp_backup_elipse, progress[0]);
+    }
+
     protected void onPostExecute(Integer result) {
       Context context = getActivity();
 
@@ -178,7 +185,7 @@ public class ImportExportFragment extends Fragment {
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        WhatsappBackupImporter.importWhatsappFromSd(getActivity(), progressDialog, importGroups, avoidDuplicates, importMedia);
+        WhatsappBackupImporter.importWhatsappFromSd(getActivity(), new ImportExportProgress(this::publishProgress), importGroups, avoidDuplicates, importMedia);
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w(TAG, e);
@@ -246,7 +253,7 @@ public class ImportExportFragment extends Fragment {
   }
 
   @SuppressLint("StaticFieldLeak")
-  private class ImportPlaintextBackupTask extends AsyncTask<Void, Void, Integer> {
+  private class ImportPlaintextBackupTask extends AsyncTask<Void, ImportExportProgress.Snapshot, Integer> {
 
     @Override
     protected void onPreExecute() {
@@ -256,6 +263,11 @@ public class ImportExportFragment extends Fragment {
                                            true, false);
     }
 
+    @Override
+    protected void onProgressUpdate(ImportExportProgress.Snapshot... progress) {
+      showProgress(progressDialog, R.string.ImportFragment_import_plaintext_backup_elipse, progress[0]);
+    }
+
     protected void onPostExecute(Integer result) {
       Context context = getActivity();
 
@@ -287,7 +299,7 @@ public class ImportExportFragment extends Fragment {
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        PlaintextBackupImporter.importPlaintextFromSd(getActivity());
+        PlaintextBackupImporter.importPlaintextFromSd(getActivity(), new ImportExportProgress(this::publishProgress));
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w(TAG, e);
@@ -300,7 +312,7 @@ public class ImportExportFragment extends Fragment {
   }
 
   @SuppressLint("StaticFieldLeak")
-  private class ExportPlaintextTask extends AsyncTask<Void, Void, Integer> {
+  private class ExportPlaintextTask extends AsyncTask<Void, ImportExportProgress.Snapshot, Integer> {
     private ProgressDialog dialog;
 
     @Override
@@ -311,10 +323,15 @@ public class ImportExportFragment extends Fragment {
                                    true, false);
     }
 
+    @Override
+    protected void onProgressUpdate(ImportExportProgress.Snapshot... progress) {
+      showProgress(dialog, R.string.ExportFragment_exporting_plaintext_to_storage, progress[0]);
+    }
+
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        PlaintextBackupExporter.exportPlaintextToSd(getActivity());
+        PlaintextBackupExporter.exportPlaintextToSd(getActivity(), new ImportExportProgress(this::publishProgress));
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w(TAG, e);
@@ -381,7 +398,7 @@ public class ImportExportFragment extends Fragment {
   }
 
   @SuppressLint("StaticFieldLeak")
-  private class ImportEncryptedBackupTask extends AsyncTask<Void, Void, Integer> {
+  private class ImportEncryptedBackupTask extends AsyncTask<Void, ImportExportProgress.Snapshot, Integer> {
 
     @Override
     protected void onPreExecute() {
@@ -391,6 +408,11 @@ public class ImportExportFragment extends Fragment {
                                            true, false);
     }
 
+    @Override
+    protected void onProgressUpdate(ImportExportProgress.Snapshot... progress) {
+      showProgress(progressDialog, R.string.ImportFragment_restoring_encrypted_backup, progress[0]);
+    }
+
     protected void onPostExecute(Integer result) {
       Context context = getActivity();
 
@@ -434,7 +456,7 @@ public class ImportExportFragment extends Fragment {
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        EncryptedBackupExporter.importFromSd(getActivity());
+        EncryptedBackupExporter.importFromSd(getActivity(), new ImportExportProgress(this::publishProgress));
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w(TAG, e);
@@ -471,7 +493,7 @@ public class ImportExportFragment extends Fragment {
     builder.show();
   }
 
-  private class ExportEncryptedTask extends AsyncTask<Void, Void, Integer> {
+  private class ExportEncryptedTask extends AsyncTask<Void, ImportExportProgress.Snapshot, Integer> {
     private ProgressDialog dialog;
 
     @Override
@@ -482,6 +504,11 @@ public class ImportExportFragment extends Fragment {
                                    true, false);
     }
 
+    @Override
+    protected void onProgressUpdate(ImportExportProgress.Snapshot... progress) {
+      showProgress(dialog, R.string.ExportFragment_exporting_keys_settings_and_messages, progress[0]);
+    }
+
     @Override
     protected void onPostExecute(Integer result) {
       Context context = getActivity();
@@ -512,7 +539,7 @@ public class ImportExportFragment extends Fragment {
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        EncryptedBackupExporter.exportToSd(getActivity());
+        EncryptedBackupExporter.exportToSd(getActivity(), new ImportExportProgress(this::publishProgress));
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w(TAG, e);
@@ -524,6 +551,39 @@ public class ImportExportFragment extends Fragment {
     }
   }
 
+  // JW: shows a throttled progress report of an import or export in its dialog, on the UI thread
+  private void showProgress(@Nullable ProgressDialog dialog, int messageRes, @NonNull ImportExportProgress.Snapshot progress) {
+    Context context = getActivity();
+    if (context == null || dialog == null || !dialog.isShowing()) return;
+
+    if (progress.getTotal() > 0) {
+      dialog.setMax((int) progress.getTotal());
+      dialog.setProgress((int) Math.min(progress.getProcessed(), progress.getTotal()));
+    }
+
+    StringBuilder message = new StringBuilder(context.getString(messageRes));
+    switch (progress.getPhase()) {
+      case PREPARING:   message.append('\n').append(context.getString(R.string.ImportExportFragment_phase_preparing));   break;
+      case COMPRESSING: message.append('\n').append(context.getString(R.string.ImportExportFragment_phase_compressing)); break;
+      case EXTRACTING:  message.append('\n').append(context.getString(R.string.ImportExportFragment_phase_extracting));  break;
+      case COPYING:     message.append('\n').append(context.getString(R.string.ImportExportFragment_phase_copying));     break;
+      case FINISHING:   message.append('\n').append(context.getString(R.string.ImportExportFragment_phase_finishing));   break;
+      default:
+        if (progress.getTotal() >= 0) {
+          message.append('\n').append(context.getString(R.string.ImportExportFragment_progress_messages_of_total, (int) progress.getProcessed(), (int) progress.getTotal()));
+        } else {
+          message.append('\n').append(context.getString(R.string.ImportExportFragment_progress_messages, (int) progress.getProcessed()));
+        }
+        if (progress.getRatePerSecond() > 0) {
+          message.append('\n').append(context.getString(R.string.ImportExportFragment_progress_per_second, (int) Math.round(progress.getRatePerSecond())));
+        }
+        if (progress.getEtaMs() >= 0) {
+          message.append('\n').append(context.getString(R.string.ImportExportFragment_progress_time_left, DateUtils.formatElapsedTime(progress.getEtaMs() / 1000)));
+        }
+    }
+    dialog.setMessage(message);
+  }
+
   private boolean existsWhatsAppMessageDatabase() {
     String dbfile = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + "msgstore.db";
     File msgdb = new File(dbfile);
@@ -24,6 +24,8 @@ class ChatsSettingsFragment : DSLSettingsFragment(R.string.preferences_chats__ch
 
   private val groupAddLabels by lazy { resources.getStringArray(R.array.pref_group_add_entries) } // JW: added
   private val groupAddValues by lazy { resources.getStringArray(R.array.pref_group_add_values) }  // JW: added
+  private val plainCompressionLabels by lazy { resources.getStringArray(R.array.pref_plain_compression_entries) } // JW: added
+  private val plainCompressionValues by lazy { resources.getStringArray(R.array.pref_plain_compression_values) }  // JW: added
   val CHOOSE_BACKUPS_LOCATION_REQUEST_CODE = 1201 // JW: added
 
   override fun onResume() {
@@ -161,6 +163,16 @@ class ChatsSettingsFragment : DSLSettingsFragment(R.string.preferences_chats__ch
         }
       )
 
+      // JW: added
+      switchPref(
+        title = DSLSettingsText.from(R.string.preferences_chats__chat_backups_incremental),
+        summary = DSLSettingsText.from(R.string.preferences_chats__chat_backups_incremental_summary),
+        isChecked = state.chatBackupIncremental,
+        onClick = {
+          viewModel.setChatBackupIncremental(!state.chatBackupIncremental)
+        }
+      )
+
       // JW: added
       switchPref(
         title = DSLSettingsText.from(R.string.preferences_chats__chat_backups_zipfile_plain),
@@ -171,6 +183,37 @@ class ChatsSettingsFragment : DSLSettingsFragment(R.string.preferences_chats__ch
         }
       )
 
+      // JW: added
+      switchPref(
+        title = DSLSettingsText.from(R.string.preferences_chats__chat_backups_plain_compact),
+        summary = DSLSettingsText.from(R.string.preferences_chats__chat_backups_plain_compact_summary),
+        isChecked = state.chatBackupPlainCompact,
+        onClick = {
+          viewModel.setChatBackupPlainCompact(!state.chatBackupPlainCompact)
+        }
+      )
+
+      // JW: added
+      radioListPref(
+        title = DSLSettingsText.from(R.string.preferences_chats__chat_backups_plain_compression),
+        listItems = plainCompressionLabels,
+        selected = plainCompressionValues.indexOf(state.chatBackupPlainCompression),
+        isEnabled = state.chatBackupZipfilePlain,
+        onSelected = {
+          viewModel.setChatBackupPlainCompression(plainCompressionValues[it])
+        }
+      )
+
+      // JW: added
+      switchPref(
+        title = DSLSettingsText.from(R.string.preferences_chats__chat_backups_plain_binary),
+        summary = DSLSettingsText.from(R.string.preferences_chats__chat_backups_plain_binary_summary),
+        isChecked = state.chatBackupPlainBinary,
+        onClick = {
+          viewModel.setChatBackupPlainBinary(!state.chatBackupPlainBinary)
+        }
+      )
+
       dividerPref()
 
       sectionHeaderPref(R.string.preferences_chats__control_message_deletion)
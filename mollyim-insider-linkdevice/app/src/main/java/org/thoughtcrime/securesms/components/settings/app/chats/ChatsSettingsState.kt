@@ -11,7 +11,11 @@ data class ChatsSettingsState(
   val chatBackupsLocation: Boolean,
   val chatBackupsLocationApi30: String,
   val chatBackupZipfile: Boolean,
+  val chatBackupIncremental: Boolean,
   val chatBackupZipfilePlain: Boolean,
+  val chatBackupPlainCompact: Boolean,
+  val chatBackupPlainCompression: String,
+  val chatBackupPlainBinary: Boolean,
   val keepViewOnceMessages: Boolean,
   val ignoreRemoteDelete: Boolean,
   val deleteMediaOnly: Boolean,
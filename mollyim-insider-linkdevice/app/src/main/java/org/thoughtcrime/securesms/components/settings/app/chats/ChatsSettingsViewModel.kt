@@ -32,7 +32,11 @@ class ChatsSettingsViewModel @JvmOverloads constructor(
       chatBackupsLocation = TextSecurePreferences.isBackupLocationRemovable(ApplicationDependencies.getApplication()),
       chatBackupsLocationApi30 = UriUtils.getFullPathFromTreeUri(ApplicationDependencies.getApplication(), SignalStore.settings().signalBackupDirectory),
       chatBackupZipfile = TextSecurePreferences.isRawBackupInZipfile(ApplicationDependencies.getApplication()),
+      chatBackupIncremental = TextSecurePreferences.isRawBackupIncremental(ApplicationDependencies.getApplication()),
       chatBackupZipfilePlain = TextSecurePreferences.isPlainBackupInZipfile(ApplicationDependencies.getApplication()),
+      chatBackupPlainCompact = TextSecurePreferences.isPlainBackupCompact(ApplicationDependencies.getApplication()),
+      chatBackupPlainCompression = TextSecurePreferences.getPlainBackupCompression(ApplicationDependencies.getApplication()),
+      chatBackupPlainBinary = TextSecurePreferences.isPlainBackupBinary(ApplicationDependencies.getApplication()),
       keepViewOnceMessages = TextSecurePreferences.isKeepViewOnceMessages(ApplicationDependencies.getApplication()),
       ignoreRemoteDelete = TextSecurePreferences.isIgnoreRemoteDelete(ApplicationDependencies.getApplication()),
       deleteMediaOnly = TextSecurePreferences.isDeleteMediaOnly(ApplicationDependencies.getApplication()),
@@ -106,12 +110,36 @@ class ChatsSettingsViewModel @JvmOverloads constructor(
     refresh()
   }
 
+  // JW: added
+  fun setChatBackupIncremental(enabled: Boolean) {
+    TextSecurePreferences.setRawBackupIncremental(ApplicationDependencies.getApplication(), enabled)
+    refresh()
+  }
+
   // JW: added
   fun setChatBackupZipfilePlain(enabled: Boolean) {
     TextSecurePreferences.setPlainBackupZipfile(ApplicationDependencies.getApplication(), enabled)
     refresh()
   }
 
+  // JW: added
+  fun setChatBackupPlainCompact(enabled: Boolean) {
+    TextSecurePreferences.setPlainBackupCompact(ApplicationDependencies.getApplication(), enabled)
+    refresh()
+  }
+
+  // JW: added
+  fun setChatBackupPlainCompression(profile: String) {
+    TextSecurePreferences.setPlainBackupCompression(ApplicationDependencies.getApplication(), profile)
+    refresh()
+  }
+
+  // JW: added
+  fun setChatBackupPlainBinary(enabled: Boolean) {
+    TextSecurePreferences.setPlainBackupBinary(ApplicationDependencies.getApplication(), enabled)
+    refresh()
+  }
+
   // JW: added
   fun keepViewOnceMessages(enabled: Boolean) {
     TextSecurePreferences.setKeepViewOnceMessages(ApplicationDependencies.getApplication(), enabled)
@@ -147,7 +175,11 @@ class ChatsSettingsViewModel @JvmOverloads constructor(
     chatBackupsLocationApi30 = UriUtils.getFullPathFromTreeUri(ApplicationDependencies.getApplication(), SignalStore.settings().signalBackupDirectory),
     chatBackupsLocation = TextSecurePreferences.isBackupLocationRemovable(ApplicationDependencies.getApplication()),
     chatBackupZipfile = TextSecurePreferences.isRawBackupInZipfile(ApplicationDependencies.getApplication()),
+    chatBackupIncremental = TextSecurePreferences.isRawBackupIncremental(ApplicationDependencies.getApplication()),
     chatBackupZipfilePlain = TextSecurePreferences.isPlainBackupInZipfile(ApplicationDependencies.getApplication()),
+    chatBackupPlainCompact = TextSecurePreferences.isPlainBackupCompact(ApplicationDependencies.getApplication()),
+    chatBackupPlainCompression = TextSecurePreferences.getPlainBackupCompression(ApplicationDependencies.getApplication()),
+    chatBackupPlainBinary = TextSecurePreferences.isPlainBackupBinary(ApplicationDependencies.getApplication()),
     keepViewOnceMessages = TextSecurePreferences.isKeepViewOnceMessages(ApplicationDependencies.getApplication()),
     ignoreRemoteDelete = TextSecurePreferences.isIgnoreRemoteDelete(ApplicationDependencies.getApplication()),
     deleteMediaOnly = TextSecurePreferences.isDeleteMediaOnly(ApplicationDependencies.getApplication()),
@@ -0,0 +1,403 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary alternative to the XML plaintext backup, holding the same messages.
+ *
+ * The file starts with a magic, a format version and the message count, followed by records of a
+ * one byte tag, a varint payload length and the payload. Numbers are varints, signed ones zigzag
+ * encoded, and the date of a message is stored as the difference to the previous one. Addresses,
+ * contact names, service centers and transports are stored once in a string record and referred
+ * to by their index afterwards, subjects and bodies are stored with every message.
+ *
+ * The count in the header is the number of messages expected when the export started and only
+ * serves the progress, rows that can not be read are skipped and new messages may arrive. The end
+ * record holds the number of messages actually written and is only written once the export
+ * completed, so a truncated or partial file is noticed.
+ *
+ * Readers skip records with unknown tags and fields appended to known records, so later versions
+ * can add to the format without breaking older readers.
+ */
+public class BinaryBackup implements PlaintextBackupReader {
+
+  private static final byte[] MAGIC   = { 'M', 'P', 'B', 'A' };
+  private static final int    VERSION = 1;
+
+  private static final int TAG_END     = 0;
+  private static final int TAG_STRING  = 1;
+  private static final int TAG_MESSAGE = 2;
+
+  // References to dictionary strings, index i is stored as i + REF_DICTIONARY
+  private static final int REF_NULL       = 0;
+  private static final int REF_INLINE     = 1;
+  private static final int REF_DICTIONARY = 2;
+
+  // Larger dictionaries are not worth the memory, strings after that are stored inline
+  private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream  in;
+  private final byte[]       buffer     = new byte[BUFFER_SIZE];
+  private final List<String> dictionary = new ArrayList<>();
+  private final long         count;
+
+  private int     bufferPosition;
+  private int     bufferLimit;
+  private byte[]  record = new byte[1024];
+  private int     recordPosition;
+  private int     recordLimit;
+  private long    previousDate;
+  private long    messages;
+  private boolean ended;
+
+  /**
+   * Reads the backup from any stream, for example a zip entry. The stream is not closed.
+   */
+  public BinaryBackup(InputStream in) throws IOException {
+    this.in = in;
+
+    for (byte b : MAGIC) {
+      if (readByte() != b) {
+        throw new IOException("Not a binary plaintext backup");
+      }
+    }
+
+    long version = readVarint();
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary plaintext backup version " + version);
+    }
+    this.count = decodeZigzag(readVarint());
+  }
+
+  /**
+   * Checks whether a stream starts with the magic of a binary backup, without consuming it.
+   *
+   * @param in a stream that supports {@link InputStream#mark(int)}.
+   */
+  static boolean hasMagic(InputStream in) throws IOException {
+    in.mark(MAGIC.length);
+    try {
+      for (byte b : MAGIC) {
+        if (in.read() != b) return false;
+      }
+      return true;
+    } finally {
+      in.reset();
+    }
+  }
+
+  @Override
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public @Nullable XmlBackup.XmlBackupItem getNext() throws IOException {
+    while (!ended) {
+      int tag = readByte();
+
+      readRecord();
+
+      switch (tag) {
+        case TAG_END:
+          long written = recordVarint();
+          if (written != messages) {
+            throw new IOException("Binary plaintext backup holds " + messages + " messages, its end record " + written);
+          }
+          ended = true;
+          break;
+        case TAG_STRING:
+          dictionary.add(new String(record, 0, recordLimit, StandardCharsets.UTF_8));
+          break;
+        case TAG_MESSAGE:
+          messages++;
+          return readMessage();
+      }
+    }
+    return null;
+  }
+
+  private XmlBackup.XmlBackupItem readMessage() throws IOException {
+    int    protocol      = (int) decodeZigzag(recordVarint());
+    String address       = recordReference();
+    String contactName   = recordReference();
+    long   date          = previousDate + decodeZigzag(recordVarint());
+    int    type          = (int) decodeZigzag(recordVarint());
+    String subject       = recordText();
+    String body          = recordText();
+    String serviceCenter = recordReference();
+    int    read          = (int) decodeZigzag(recordVarint());
+    int    status        = (int) decodeZigzag(recordVarint());
+    String transport     = recordReference();
+    long   torecipient   = decodeZigzag(recordVarint());
+
+    previousDate = date;
+    return new XmlBackup.XmlBackupItem(protocol, address, contactName, date, type, subject, body, serviceCenter, read, status, transport, torecipient);
+  }
+
+  private void readRecord() throws IOException {
+    long length = readVarint();
+    if (length > Integer.MAX_VALUE - 8) {
+      throw new IOException("Invalid record length " + length);
+    }
+
+    if (record.length < length) {
+      record = new byte[Math.max((int) length, record.length * 2)];
+    }
+
+    int position = 0;
+    while (position < length) {
+      if (bufferPosition == bufferLimit) fill();
+      int n = Math.min(bufferLimit - bufferPosition, (int) length - position);
+      System.arraycopy(buffer, bufferPosition, record, position, n);
+      bufferPosition += n;
+      position       += n;
+    }
+    recordPosition = 0;
+    recordLimit    = (int) length;
+  }
+
+  private long recordVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (recordPosition == recordLimit) {
+        throw new IOException("Record ends within a field");
+      }
+      byte b = record[recordPosition++];
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) return value;
+    }
+    throw new IOException("Varint too long");
+  }
+
+  private @Nullable String recordText() throws IOException {
+    long length = recordVarint();
+    if (length == 0) return null;
+
+    length--;
+    if (length > recordLimit - recordPosition) {
+      throw new IOException("Record ends within a text field");
+    }
+
+    String text = new String(record, recordPosition, (int) length, StandardCharsets.UTF_8);
+    recordPosition += (int) length;
+    return text;
+  }
+
+  private @Nullable String recordReference() throws IOException {
+    long reference = recordVarint();
+
+    if (reference == REF_NULL) {
+      return null;
+    } else if (reference == REF_INLINE) {
+      return recordText();
+    } else if (reference - REF_DICTIONARY < dictionary.size()) {
+      return dictionary.get((int) (reference - REF_DICTIONARY));
+    } else {
+      throw new IOException("Unknown string reference " + reference);
+    }
+  }
+
+  private long readVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Varint too long");
+  }
+
+  private int readByte() throws IOException {
+    if (bufferPosition == bufferLimit) fill();
+    return buffer[bufferPosition++] & 0xff;
+  }
+
+  private void fill() throws IOException {
+    int read = in.read(buffer, 0, buffer.length);
+    if (read <= 0) {
+      throw new EOFException("Binary plaintext backup is truncated");
+    }
+    bufferPosition = 0;
+    bufferLimit    = read;
+  }
+
+  private static long decodeZigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static long encodeZigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  public static class Writer implements PlaintextBackupWriter {
+
+    private final OutputStream         out;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final Record               prefix     = new Record();
+    private final Record               string     = new Record();
+    private final Record               message    = new Record();
+
+    private long previousDate;
+    private long written;
+
+    /**
+     * Writes the backup to any stream, for example a zip entry. The stream is closed by {@link #close()},
+     * or right away if the header can not be written. The end record is only written by {@link #finish()}.
+     */
+    public Writer(OutputStream out, int count) throws IOException {
+      this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+
+      try {
+        prefix.writeBytes(MAGIC, MAGIC.length);
+        prefix.writeVarint(VERSION);
+        prefix.writeVarint(encodeZigzag(count));
+        prefix.writeTo(this.out);
+      } catch (IOException | RuntimeException e) {
+        closeQuietly(out, e);
+        throw e;
+      }
+    }
+
+    @Override
+    public void writeItem(XmlBackup.XmlBackupItem item) throws IOException {
+      message.reset();
+      message.writeVarint(encodeZigzag(item.getProtocol()));
+      writeReference(item.getAddress());
+      writeReference(item.getContactName());
+      message.writeVarint(encodeZigzag(item.getDate() - previousDate));
+      message.writeVarint(encodeZigzag(item.getType()));
+      message.writeText(item.getSubject());
+      message.writeText(item.getBody());
+      writeReference(item.getServiceCenter());
+      message.writeVarint(encodeZigzag(item.getRead()));
+      message.writeVarint(encodeZigzag(item.getStatus()));
+      writeReference(item.getTransport());
+      message.writeVarint(encodeZigzag(item.getRecipient()));
+
+      previousDate = item.getDate();
+      writeRecord(TAG_MESSAGE, message);
+      written++;
+    }
+
+    // New dictionary strings are written before the message that refers to them
+    private void writeReference(@Nullable String value) throws IOException {
+      if (value == null) {
+        message.writeVarint(REF_NULL);
+        return;
+      }
+
+      Integer index = dictionary.get(value);
+
+      if (index == null && dictionary.size() < MAX_DICTIONARY_SIZE) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        index = dictionary.size();
+        dictionary.put(value, index);
+
+        string.reset();
+        string.writeBytes(bytes, bytes.length);
+        writeRecord(TAG_STRING, string);
+      }
+
+      if (index != null) {
+        message.writeVarint(index + REF_DICTIONARY);
+      } else {
+        message.writeVarint(REF_INLINE);
+        message.writeText(value);
+      }
+    }
+
+    private void writeRecord(int tag, Record payload) throws IOException {
+      out.write(tag);
+      prefix.reset();
+      prefix.writeVarint(payload.length);
+      prefix.writeTo(out);
+      payload.writeTo(out);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      message.reset();
+      message.writeVarint(written);
+      writeRecord(TAG_END, message);
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    private static void closeQuietly(OutputStream stream, Exception cause) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        cause.addSuppressed(e);
+      }
+    }
+  }
+
+  /**
+   * Growable byte buffer a record is assembled in.
+   */
+  private static final class Record {
+    private byte[] bytes = new byte[1024];
+    private int    length;
+
+    void reset() {
+      length = 0;
+    }
+
+    void writeVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7fL) != 0) {
+        bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+
+    void writeText(@Nullable String text) {
+      if (text == null) {
+        writeVarint(0);
+        return;
+      }
+
+      byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+      writeVarint(encoded.length + 1);
+      writeBytes(encoded, encoded.length);
+    }
+
+    void writeBytes(byte[] source, int count) {
+      ensureCapacity(count);
+      System.arraycopy(source, 0, bytes, length, count);
+      length += count;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(bytes, 0, length);
+    }
+
+    private void ensureCapacity(int extra) {
+      if (bytes.length - length < extra) {
+        byte[] larger = new byte[Math.max(bytes.length * 2, length + extra)];
+        System.arraycopy(bytes, 0, larger, 0, length);
+        bytes = larger;
+      }
+    }
+  }
+}
@@ -23,6 +23,10 @@ import android.os.Environment;
 
 import androidx.annotation.NonNull;
 
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
+import net.lingala.zip4j.model.LocalFileHeader;
+
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
@@ -33,19 +37,28 @@ import org.thoughtcrime.securesms.crypto.KeyStoreHelper;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.FileUtilsJW;
 import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.ParallelFileCopier;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.lang.String;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -60,47 +73,322 @@ public class EncryptedBackupExporter {
   private static final String backupKeyFile = "backupkey.txt";
   private static final String exportDirectory = "MollyExport";
   private static final String secretsExportDirectory = "MollySecrets";
+  private static final String settingsFile = "org.thoughtcrime.securesms_preferences";
+  private static final String zipfileName = "MollyExport";
+  private static final String deltaZipfileInfix = ".delta-";
+  private static final String deletedFilesEntry = "MollyManifest/deleted.txt";
+  private static final String zipManifestFile = "raw_backup_zip.manifest";
+  private static final String directoryManifestFile = "raw_backup_dir.manifest";
+
+  private static final int ZIP_BUFFER_SIZE = 64 * 1024;
+
+  // Number of incremental zipfiles written on top of a full one before the next full export
+  private static final int MAX_DELTA_ZIPFILES = 7;
+
+  private interface SecretSource {
+    // Returns the first line of the named secrets file in the backup, or null if it is missing
+    String get(String fileName);
+  }
 
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
+    exportToSd(context, ImportExportProgress.none());
+  }
+
+  public static void exportToSd(Context context, ImportExportProgress progress) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport(context);
     AttachmentSecretProvider asp = AttachmentSecretProvider.getInstance(context);
     DatabaseSecret dbs = DatabaseSecretProvider.getOrCreateDatabaseSecret(context);
     AttachmentSecret ats = asp.getOrCreateAttachmentSecret();
     byte[] lgs = getOrCreateLogSecret(context);
     String bks = BackupPassphrase.get(context);
-    exportDirectory(context, "");
-    exportSecrets(context, dbs, ats, lgs, bks);
-    if (TextSecurePreferences.isRawBackupInZipfile(context)) {
-      File test = new File(getEncryptedZipfileName());
-      if (test.exists()) {
-        test.delete();
+
+    // JW: the manifest of the previous export decides which files have to be exported again
+    boolean           inZipfile    = TextSecurePreferences.isRawBackupInZipfile(context);
+    File              dataDir      = new File(context.getFilesDir().getParent());
+    List<String>      files        = ParallelFileCopier.listFiles(dataDir, EncryptedBackupExporter::isExported);
+    File              manifestFile = getManifestFile(context, inZipfile);
+    RawBackupManifest previous     = TextSecurePreferences.isRawBackupIncremental(context) ? RawBackupManifest.load(manifestFile) : null;
+    RawBackupManifest next;
+
+    if (inZipfile) {
+      File base = new File(getEncryptedZipfileName());
+      if (previous != null && (!previous.isBase(base) ||
+                               previous.getDeltaCount() >= MAX_DELTA_ZIPFILES ||
+                               getDeltaZipfiles(base).size() != previous.getDeltaCount()))
+      {
+        Log.i(TAG, "Previous zipfile backup can not be extended, making a full one");
+        previous = null;
       }
-      FileUtilsJW.createEncryptedZipfile(context, getEncryptedZipfileName(), getExportDirectoryPath(context), getExportSecretsDirectory(context));
+
+      RawBackupManifest.Diff diff = (previous != null ? previous : RawBackupManifest.empty()).diff(dataDir, files, progress);
+      next = diff.getNext();
+
+      if (previous == null) {
+        deleteDeltaZipfiles(base);
+        if (base.exists()) {
+          base.delete();
+        }
+        exportToZipfile(context, base, dataDir, diff.getChanged(), Collections.emptyList(), dbs, ats, lgs, bks, progress);
+        next.setBase(base);
+        next.setDeltaCount(0);
+      } else {
+        int  delta     = previous.getDeltaCount() + 1;
+        File deltaFile = getDeltaZipfile(base, delta);
+        if (deltaFile.exists()) {
+          deltaFile.delete();
+        }
+        exportToZipfile(context, deltaFile, dataDir, diff.getChanged(), diff.getDeleted(), dbs, ats, lgs, bks, progress);
+        next.setDeltaCount(delta);
+      }
+      // Leftovers of an export without zipfile would otherwise stay next to it
       deleteRawBackupFiles(context);
+    } else {
+      File exportDir = new File(getExportDirectoryPath(context));
+      if (previous != null && !exportDir.isDirectory()) {
+        previous = null;
+      }
+
+      RawBackupManifest.Diff diff = (previous != null ? previous : RawBackupManifest.empty()).diff(dataDir, files, progress);
+      next = diff.getNext();
+
+      if (previous == null) {
+        exportDirectory(context, progress);
+      } else {
+        // The export directory is a mirror of the data dir, so deletions are applied to it directly
+        ParallelFileCopier.copyFiles(dataDir, exportDir, diff.getChanged(), progress);
+        for (String relativePath : diff.getDeleted()) {
+          new File(exportDir, relativePath).delete();
+        }
+      }
+      exportSecrets(context, dbs, ats, lgs, bks);
     }
+
+    // Always saved, also when not incremental, so it never describes an older backup
+    next.save(manifestFile);
   }
 
   public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
+    importFromSd(context, ImportExportProgress.none());
+  }
+
+  public static void importFromSd(Context context, ImportExportProgress progress) throws NoExternalStorageException, IOException {
     // Store in a boolean because settings might change after restore
     boolean rawBackupInZipfile = TextSecurePreferences.isRawBackupInZipfile(context);
-    // Extract the zipfile
+    // The restored data dir no longer matches the manifests, the next export has to be a full one
+    getManifestFile(context, true).delete();
+    getManifestFile(context, false).delete();
     if (rawBackupInZipfile) {
-      FileUtilsJW.extractEncryptedZipfile(context, getEncryptedZipfileName(), StorageUtil.getRawBackupDirectory().getAbsolutePath());
+      importFromZipfile(context, new File(getEncryptedZipfileName()), progress);
+      deleteRawBackupFiles(context);
+      return;
     }
     verifyExternalStorageForImport(context);
-    importDirectory(context, "");
-    importSharedSettings(context);
-    importSecrets(context);
-    if (rawBackupInZipfile) {
-      deleteRawBackupFiles(context);
+    importDirectory(context, progress);
+    importSharedSettings(context, new File(getExportDirectoryPath(context) + File.separator + "shared_prefs" + File.separator + settingsFile + ".xml"));
+    importSecrets(context, name -> readFirstLine(new File(getExportSecretsDirectory(context) + name)));
+  }
+
+  // Writes the secrets and the files of the data dir straight into the zipfile, without the
+  // intermediate MollyExport and MollySecrets copies on storage. An incremental zipfile also lists
+  // the files deleted since the previous one.
+  private static void exportToZipfile(Context context, File zipfile, File dataDir, List<String> files, List<String> deleted,
+                                      DatabaseSecret dbs, AttachmentSecret ats, byte[] lgs, String bks, ImportExportProgress progress)
+      throws IOException
+  {
+    String password = FileUtilsJW.getBackupPassword(context);
+    byte[] buffer   = new byte[ZIP_BUFFER_SIZE];
+
+    progress.setPhase(ImportExportProgress.Phase.COMPRESSING, files.size());
+
+    try (ZipOutputStream zip = FileUtilsJW.openEncryptedZipOutputStream(zipfile, password)) {
+      writeZipEntry(zip, secretsExportDirectory + "/" + databaseSecretFile, dbs.asString(), password);
+      writeZipEntry(zip, secretsExportDirectory + "/" + attachmentSecretFile, ats.serialize(), password);
+      writeZipEntry(zip, secretsExportDirectory + "/" + logSecretFile, Base64.encodeBytes(lgs), password);
+      if (bks != null) { // Backupkey is optional
+        writeZipEntry(zip, secretsExportDirectory + "/" + backupKeyFile, bks, password);
+      }
+      if (!deleted.isEmpty()) {
+        StringBuilder deletedFiles = new StringBuilder();
+        for (String relativePath : deleted) {
+          deletedFiles.append(relativePath.replace(File.separatorChar, '/')).append('\n');
+        }
+        writeZipEntry(zip, deletedFilesEntry, deletedFiles.toString(), password);
+      }
+
+      for (int i = 0; i < files.size(); i++) {
+        String relativePath = files.get(i);
+        writeZipEntry(zip, exportDirectory + relativePath.replace(File.separatorChar, '/'), new File(dataDir, relativePath), password, buffer);
+        progress.update(i + 1);
+      }
+    }
+    progress.finish();
+  }
+
+  private static void writeZipEntry(ZipOutputStream zip, String name, String content, String password) throws IOException {
+    byte[] data = content.getBytes(StandardCharsets.UTF_8);
+
+    zip.putNextEntry(FileUtilsJW.getStoredEntryParameters(name, data.length, System.currentTimeMillis(), password));
+    zip.write(data);
+    zip.closeEntry();
+  }
+
+  // Stores the file with the size it had when it was opened, files that are still growing are cut there
+  private static void writeZipEntry(ZipOutputStream zip, String name, File file, String password, byte[] buffer) throws IOException {
+    FileInputStream in;
+    try {
+      in = new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      // Temporary files like journals can disappear between the listing and the export
+      if (file.exists()) throw e;
+      Log.w(TAG, "Skipping vanished file " + file.getAbsolutePath());
+      return;
+    }
+
+    try {
+      long size      = in.getChannel().size();
+      long remaining = size;
+
+      zip.putNextEntry(FileUtilsJW.getStoredEntryParameters(name, size, file.lastModified(), password));
+      while (remaining > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          throw new IOException(file.getAbsolutePath() + " shrank while it was exported");
+        }
+        zip.write(buffer, 0, read);
+        remaining -= read;
+      }
+      zip.closeEntry();
+    } finally {
+      in.close();
+    }
+  }
+
+  // Streams the zip entries straight to their final location in the data dir, the secrets are
+  // only held in memory. The full zipfile is applied first and then the incremental ones in the
+  // order they were written, the settings and secrets of the last one win.
+  private static void importFromZipfile(Context context, File zipfile, ImportExportProgress progress)
+      throws NoExternalStorageException, IOException
+  {
+    if (!zipfile.exists()) {
+      throw new NoExternalStorageException();
+    }
+
+    String              password = FileUtilsJW.getBackupPassword(context);
+    File                dataDir  = new File(context.getFilesDir().getParent());
+    Map<String, String> secrets  = new HashMap<>();
+    byte[]              buffer   = new byte[ZIP_BUFFER_SIZE];
+    int                 entries  = 0;
+    List<File>          zipfiles = new ArrayList<>();
+
+    zipfiles.add(zipfile);
+    zipfiles.addAll(getDeltaZipfiles(zipfile));
+
+    progress.setPhase(ImportExportProgress.Phase.EXTRACTING, -1);
+
+    for (File file : zipfiles) {
+      List<String> deleted = new ArrayList<>();
+
+      Log.i(TAG, "Importing " + file.getName());
+      entries = extractZipfile(file, password, dataDir, secrets, deleted, buffer, progress, entries);
+
+      for (String relativePath : deleted) {
+        File target = getDataDirTarget(dataDir, relativePath, relativePath);
+        if (target.exists() && !target.delete()) {
+          Log.w(TAG, "Could not delete " + target.getAbsolutePath());
+        }
+      }
     }
+    progress.finish();
+
+    importSharedSettings(context, new File(dataDir, "shared_prefs" + File.separator + settingsFile + ".xml"));
+    importSecrets(context, secrets::get);
   }
 
-  private static void importSharedSettings(Context context) {
+  // Returns the number of entries processed so far, including those of this zipfile
+  private static int extractZipfile(File zipfile, String password, File dataDir, Map<String, String> secrets, List<String> deleted,
+                                    byte[] buffer, ImportExportProgress progress, int entries)
+      throws IOException
+  {
+    try (ZipInputStream zip = FileUtilsJW.openEncryptedZipInputStream(zipfile, password)) {
+      LocalFileHeader header;
+
+      while ((header = zip.getNextEntry()) != null) {
+        String name = header.getFileName();
+
+        if (name.startsWith(secretsExportDirectory + "/")) {
+          if (!header.isDirectory()) {
+            secrets.put(name.substring(secretsExportDirectory.length() + 1), firstLine(readFully(zip, buffer)));
+          }
+        } else if (name.equals(deletedFilesEntry)) {
+          for (String relativePath : readFully(zip, buffer).split("\n")) {
+            if (!relativePath.isEmpty()) {
+              deleted.add(relativePath);
+            }
+          }
+        } else if (name.startsWith(exportDirectory + "/")) {
+          File target = getDataDirTarget(dataDir, name.substring(exportDirectory.length() + 1), name);
+
+          if (header.isDirectory()) {
+            target.mkdirs();
+          } else {
+            target.getParentFile().mkdirs();
+            try (FileOutputStream out = new FileOutputStream(target)) {
+              int read;
+              while ((read = zip.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+              }
+            }
+          }
+        } else {
+          Log.w(TAG, "Ignoring zip entry " + name);
+        }
+        progress.update(++entries);
+      }
+    }
+    return entries;
+  }
+
+  private static File getDataDirTarget(File dataDir, String relativePath, String name) throws IOException {
+    File   target      = new File(dataDir, relativePath);
+    String dataDirPath = dataDir.getCanonicalPath();
+    String targetPath  = target.getCanonicalPath();
+
+    if (!targetPath.equals(dataDirPath) && !targetPath.startsWith(dataDirPath + File.separator)) {
+      throw new IOException("Zip entry outside of the data directory: " + name);
+    }
+    return target;
+  }
+
+  private static String readFully(InputStream in, byte[] buffer) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String firstLine(String content) {
+    int end = content.indexOf('\n');
+    if (end < 0) return content;
+    return content.substring(0, end > 0 && content.charAt(end - 1) == '\r' ? end - 1 : end);
+  }
+
+  // Returns the first line of a secrets file, or null if it does not exist or can not be read
+  private static String readFirstLine(File file) {
+    if (!file.exists()) return null;
+
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+      return reader.readLine();
+    } catch (IOException e) {
+      Log.w(TAG, "Reading " + file.getName() + " failed: " + e.toString());
+      return null;
+    }
+  }
+
+  private static void importSharedSettings(Context context, File fromPrefFile) {
     String tempFileName = "tempsettings";
-    String settingsFile = "org.thoughtcrime.securesms_preferences";
 
-    File fromPrefFile = new File(getExportDirectoryPath(context) + File.separator + "shared_prefs" + File.separator + settingsFile + ".xml");
     // Copy fromFile to shared_prefs
     File toTempFile = new File(context.getFilesDir() + File.separator + ".." + File.separator + "shared_prefs" + File.separator + tempFileName + ".xml");
     migrateFile(fromPrefFile, toTempFile);
@@ -144,11 +432,11 @@ public class EncryptedBackupExporter {
 
   // Replace the secrets with the new versions. These values might change when the backup is
   // restored on another device as where it is made.
-  private static void importSecrets(Context context) {
-    DatabaseSecret dbs = getDatabaseSecretFromBackup(context);
-    AttachmentSecret ats = getAttachmentSecretFromBackup(context);
-    byte[] lgs = getLogSecretFromBackup(context);
-    String bks = getBackupKeyFromBackup(context);
+  private static void importSecrets(Context context, SecretSource source) {
+    DatabaseSecret dbs = getDatabaseSecretFromBackup(source.get(databaseSecretFile));
+    AttachmentSecret ats = getAttachmentSecretFromBackup(source.get(attachmentSecretFile));
+    byte[] lgs = getLogSecretFromBackup(source.get(logSecretFile));
+    String bks = source.get(backupKeyFile);
 
     if (dbs != null) {
       overwriteDatabaseSecret(context, dbs);
@@ -202,11 +490,6 @@ public class EncryptedBackupExporter {
     if (!Environment.getExternalStorageDirectory().canWrite())
       throw new NoExternalStorageException();
 
-    String exportDirectoryPath = getExportDirectoryPath(context);
-    File exportDirectory       = new File(exportDirectoryPath);
-
-    if (!exportDirectory.exists())
-      exportDirectory.mkdir();
   }
 
   private static void verifyExternalStorageForImport(Context context) throws NoExternalStorageException {
@@ -218,73 +501,47 @@ public class EncryptedBackupExporter {
   private static void migrateFile(File from, File to) {
     try {
       if (from.exists()) {
-        FileChannel source      = new FileInputStream(from).getChannel();
-        FileChannel destination = new FileOutputStream(to).getChannel();
-
-        destination.transferFrom(source, 0, source.size());
-        source.close();
-        destination.close();
+        ParallelFileCopier.copyFile(from, to);
       }
     } catch (IOException ioe) {
       Log.w(TAG, ioe);
     }
   }
 
-  private static void exportDirectory(Context context, String directoryName) throws IOException {
-    if (!directoryName.equals("/lib") && !directoryName.equals("/code_cache") && !directoryName.equals("/cache")) {
-      File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
-      File exportDirectory = new File(getExportDirectoryPath(context) + File.separatorChar + directoryName);
-
-      if (directory.exists()) {
-        exportDirectory.mkdirs();
-
-        File[] contents = directory.listFiles();
-
-        if (contents == null)
-          throw new IOException("directory.listFiles() is null for " + context.getFilesDir().getParent() + File.separatorChar + directoryName + "!");
+  private static void exportDirectory(Context context, ImportExportProgress progress) throws IOException {
+    File directory = new File(context.getFilesDir().getParent());
 
-        for (int i=0;i<contents.length;i++) {
-          File localFile = contents[i];
-
-          // Don't export the libraries
-          if ( localFile.getAbsolutePath().contains("libaesgcm.so") ||
-               localFile.getAbsolutePath().contains("libconscrypt_jni.so") ||
-               localFile.getAbsolutePath().contains("libnative-utils.so") ||
-               localFile.getAbsolutePath().contains("libringrtc.so") ||
-               localFile.getAbsolutePath().contains("libringrtc_rffi.so") ||
-               localFile.getAbsolutePath().contains("libargon2.so") ||
-               localFile.getAbsolutePath().contains("libsqlcipher.so") ) {
-           // Do nothing
-          } else if (localFile.isFile()) {        
-            File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
-            migrateFile(localFile, exportedFile);
-          } else {
-            exportDirectory(context, directoryName + File.separator + localFile.getName());
-          }
-        }
-      } else {
-        Log.w(TAG, "Could not find directory: " + directory.getAbsolutePath());
-      }
+    if (directory.exists()) {
+      ParallelFileCopier.copyTree(directory, new File(getExportDirectoryPath(context)), EncryptedBackupExporter::isExported, progress);
+    } else {
+      Log.w(TAG, "Could not find directory: " + directory.getAbsolutePath());
     }
   }
 
-  private static void importDirectory(Context context, String directoryName) throws IOException {
-    File directory       = new File(getExportDirectoryPath(context) + File.separator + directoryName);
-    File importDirectory = new File(context.getFilesDir().getParent() + File.separator + directoryName);
+  // Don't export the libraries, the caches and the manifests of the previous exports
+  private static boolean isExported(String relativePath, File file) {
+    if (relativePath.equals("/lib") || relativePath.equals("/code_cache") || relativePath.equals("/cache")) {
+      return false;
+    }
+    if (relativePath.equals("/no_backup/" + zipManifestFile) || relativePath.equals("/no_backup/" + directoryManifestFile)) {
+      return false;
+    }
 
-    if (directory.exists() && directory.isDirectory()) {
-      importDirectory.mkdirs();
+    String path = file.getAbsolutePath();
+    return !(path.contains("libaesgcm.so") ||
+             path.contains("libconscrypt_jni.so") ||
+             path.contains("libnative-utils.so") ||
+             path.contains("libringrtc.so") ||
+             path.contains("libringrtc_rffi.so") ||
+             path.contains("libargon2.so") ||
+             path.contains("libsqlcipher.so"));
+  }
 
-      File[] contents = directory.listFiles();
+  private static void importDirectory(Context context, ImportExportProgress progress) throws IOException {
+    File directory = new File(getExportDirectoryPath(context));
 
-      for (File exportedFile : contents) {
-        if (exportedFile.isFile()) {
-          File localFile = new File(importDirectory.getAbsolutePath() + File.separator + exportedFile.getName());
-          migrateFile(exportedFile, localFile);
-        } else if (exportedFile.isDirectory()) {
-          importDirectory(context, directoryName + File.separator + exportedFile.getName());
-        }
-      }
+    if (directory.exists() && directory.isDirectory()) {
+      ParallelFileCopier.copyTree(directory, new File(context.getFilesDir().getParent()), (relativePath, file) -> true, progress);
     }
   }
 
@@ -316,109 +573,36 @@ public class EncryptedBackupExporter {
     }
   }
 
-  private static DatabaseSecret getDatabaseSecretFromBackup(Context context) {
-    DatabaseSecret dbs = null;
-    File databaseSecretExportFile = new File(getExportDatabaseSecretFullName(context));
+  private static DatabaseSecret getDatabaseSecretFromBackup(String encoded) {
+    if (encoded == null) return null;
 
     try {
-      if (databaseSecretExportFile.exists()) {
-        String encoded = "";
-        FileInputStream fIn = new FileInputStream(databaseSecretExportFile);
-        InputStreamReader inputStreamReader = new InputStreamReader(fIn);
-        BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-        StringBuilder stringBuilder = new StringBuilder();
-
-        stringBuilder.append(bufferedReader.readLine());
-        encoded = stringBuilder.toString();
-
-        inputStreamReader.close();
-        fIn.close();
-
-        dbs = new DatabaseSecret(encoded);
-      }
-    } catch (IOException e) {
-      Log.w(TAG, "getDatabaseSecretFromBackup file read failed: " + e.toString());
+      return new DatabaseSecret(encoded);
+    } catch (Exception e) {
+      Log.w(TAG, "getDatabaseSecretFromBackup failed: " + e.toString());
+      return null;
     }
-    return dbs;
   }
 
-  private static AttachmentSecret getAttachmentSecretFromBackup(Context context) {
-    AttachmentSecret ats = null;
-    File attachmentSecretExportFile = new File(getExportAttachmentSecretFullName(context));
+  private static AttachmentSecret getAttachmentSecretFromBackup(String encoded) {
+    if (encoded == null) return null;
 
     try {
-      if (attachmentSecretExportFile.exists()) {
-        String encoded = "";
-        FileInputStream fIn = new FileInputStream(attachmentSecretExportFile);
-        InputStreamReader inputStreamReader = new InputStreamReader(fIn);
-        BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-        StringBuilder stringBuilder = new StringBuilder();
-
-        stringBuilder.append(bufferedReader.readLine());
-        encoded = stringBuilder.toString();
-
-        inputStreamReader.close();
-        fIn.close();
-
-        ats = new AttachmentSecret();
-        try {
-          ats = JsonUtils.fromJson(encoded, AttachmentSecret.class);
-        } catch (IOException e) {
-          throw new AssertionError(e);
-        }
-      }
+      return JsonUtils.fromJson(encoded, AttachmentSecret.class);
     } catch (IOException e) {
-      Log.w(TAG, "getAttachmentSecretFromBackup file read failed: " + e.toString());
+      throw new AssertionError(e);
     }
-    return ats;
   }
 
-  private static byte[] getLogSecretFromBackup(Context context) {
-    byte[] lgs = null;
-    File logSecretExportFile = new File(getExportLogSecretFullName(context));
+  private static byte[] getLogSecretFromBackup(String encoded) {
+    if (encoded == null) return null;
 
     try {
-      if (logSecretExportFile.exists()) {
-        String encoded = "";
-        FileInputStream fIn = new FileInputStream(logSecretExportFile);
-        InputStreamReader inputStreamReader = new InputStreamReader(fIn);
-        BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-        StringBuilder stringBuilder = new StringBuilder();
-
-        stringBuilder.append(bufferedReader.readLine());
-        encoded = stringBuilder.toString();
-
-        inputStreamReader.close();
-        fIn.close();
-
-        lgs = new byte[32];
-        lgs = Base64.decode(encoded);
-      }
-    } catch (IOException e) {
-      Log.w(TAG, "getLogSecretFromBackup file read failed: " + e.toString());
+      return Base64.decode(encoded);
+    } catch (Exception e) {
+      Log.w(TAG, "getLogSecretFromBackup failed: " + e.toString());
+      return null;
     }
-    return lgs;
-  }
-  
-  private static String getBackupKeyFromBackup(Context context) {
-	  String bks = null;
-    // Standard backup is optional, so it can be quite normal if the file does not exist
-    File backupPasswordExportFile = new File(getExportBackupKeyFullName(context));
-
-    try {
-      if (backupPasswordExportFile.exists()) {
-        FileInputStream fIn = new FileInputStream(backupPasswordExportFile);
-        InputStreamReader inputStreamReader = new InputStreamReader(fIn);
-        BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-        StringBuilder stringBuilder = new StringBuilder();
-
-        stringBuilder.append(bufferedReader.readLine());
-        bks = stringBuilder.toString();
-      }
-    } catch (IOException e) {
-      Log.w(TAG, "getBackupKeyFromBackup file read failed: " + e.toString());
-    }
-    return bks;
   }
 
   // JW: store an existing DatabaseSecret in the settingsfile.
@@ -493,16 +677,45 @@ public class EncryptedBackupExporter {
   private static String getEncryptedZipfileName() {
     try {
       String backupPath = StorageUtil.getRawBackupDirectory().getAbsolutePath();
-      return backupPath + File.separator + "MollyExport.zip";
+      return backupPath + File.separator + zipfileName + ".zip";
     } catch (NoExternalStorageException e) {
       Log.w(TAG, "getEncryptedZipfileName failed: " + e.toString());
       return Environment.getExternalStorageDirectory().getAbsolutePath();
     }
   }
 
+  private static File getDeltaZipfile(File base, int number) {
+    return new File(base.getParentFile(), String.format(Locale.US, "%s%s%04d.zip", zipfileName, deltaZipfileInfix, number));
+  }
+
+  // Returns the incremental zipfiles on top of base in the order they were written, up to the first missing one
+  private static List<File> getDeltaZipfiles(File base) {
+    List<File> deltas = new ArrayList<>();
+    for (int number = 1; ; number++) {
+      File delta = getDeltaZipfile(base, number);
+      if (!delta.exists()) {
+        return deltas;
+      }
+      deltas.add(delta);
+    }
+  }
+
+  private static void deleteDeltaZipfiles(File base) {
+    File[] files = base.getParentFile().listFiles((dir, name) -> name.startsWith(zipfileName + deltaZipfileInfix) && name.endsWith(".zip"));
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  private static File getManifestFile(Context context, boolean inZipfile) {
+    return new File(context.getNoBackupFilesDir(), inZipfile ? zipManifestFile : directoryManifestFile);
+  }
+
   // Delete the exported contents of the data dir and the unencrypted keys.
   private static void deleteRawBackupFiles(Context context) {
     FileUtilsJW.secureDeleteRecursive(new File(getExportSecretsDirectory(context)));
-    FileUtilsJW.deleteRecursive(new File(getExportDirectoryPath(context)));
+    FileUtilsJW.secureDeleteRecursive(new File(getExportDirectoryPath(context)));
   }
 }
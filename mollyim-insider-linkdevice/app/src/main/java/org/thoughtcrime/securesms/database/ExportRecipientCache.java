@@ -0,0 +1,73 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.collection.LongSparseArray;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Export scoped snapshot of the sender address and display name of every recipient in the message
+ * table. It is filled in bulk before the export starts and is read-only afterwards, so it can be
+ * shared by several export threads. It is keyed by the recipient ids read from the message rows,
+ * so no Recipient has to be looked up per message. Recipients that show up later are resolved
+ * without caching.
+ */
+final class ExportRecipientCache {
+
+  private static final String TAG = Log.tag(ExportRecipientCache.class);
+
+  private final Context                   context;
+  private final LongSparseArray<Snapshot> snapshots;
+
+  private ExportRecipientCache(Context context, LongSparseArray<Snapshot> snapshots) {
+    this.context   = context;
+    this.snapshots = snapshots;
+  }
+
+  static ExportRecipientCache load(@NonNull Context context) {
+    Set<RecipientId>          ids        = SignalDatabase.messages().getDistinctFromRecipientIds();
+    List<Recipient>           recipients = Recipient.resolvedList(ids);
+    LongSparseArray<Snapshot> snapshots  = new LongSparseArray<>(recipients.size());
+
+    for (Recipient recipient : recipients) {
+      snapshots.put(recipient.getId().toLong(), Snapshot.of(context, recipient));
+    }
+
+    Log.i(TAG, "Cached " + snapshots.size() + " recipients for export");
+    return new ExportRecipientCache(context, snapshots);
+  }
+
+  @NonNull Snapshot get(long recipientId) {
+    Snapshot snapshot = snapshots.get(recipientId);
+    return snapshot != null ? snapshot : Snapshot.of(context, Recipient.resolved(RecipientId.from(recipientId)));
+  }
+
+  static final class Snapshot {
+    private final String address;
+    private final String displayName;
+
+    private Snapshot(String address, String displayName) {
+      this.address     = address;
+      this.displayName = displayName;
+    }
+
+    private static Snapshot of(Context context, Recipient recipient) {
+      return new Snapshot(recipient.getSmsAddress().orElse("null"), recipient.getDisplayName(context));
+    }
+
+    String getAddress() {
+      return address;
+    }
+
+    String getDisplayName() {
+      return displayName;
+    }
+  }
+}
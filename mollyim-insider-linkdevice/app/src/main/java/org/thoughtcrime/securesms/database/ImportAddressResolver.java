@@ -0,0 +1,57 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Import scoped memo of address to recipient and thread. Backups are dominated by a few
+ * conversations with many messages each, so every address only has to go to the recipient and
+ * thread tables once per import.
+ */
+final class ImportAddressResolver {
+
+  private final Context               context;
+  private final ThreadTable           threads;
+  private final Map<String, Resolved> resolved = new HashMap<>();
+
+  ImportAddressResolver(@NonNull Context context, @NonNull ThreadTable threads) {
+    this.context = context;
+    this.threads = threads;
+  }
+
+  @NonNull Resolved resolve(@NonNull String address) {
+    Resolved result = resolved.get(address);
+
+    if (result == null) {
+      Recipient recipient = Recipient.external(context, address);
+      result = new Resolved(recipient.getId(), threads.getOrCreateThreadIdFor(recipient));
+      resolved.put(address, result);
+    }
+    return result;
+  }
+
+  static final class Resolved {
+    private final RecipientId recipientId;
+    private final long        threadId;
+
+    private Resolved(RecipientId recipientId, long threadId) {
+      this.recipientId = recipientId;
+      this.threadId    = threadId;
+    }
+
+    RecipientId getRecipientId() {
+      return recipientId;
+    }
+
+    long getThreadId() {
+      return threadId;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+
+import java.io.File;
+
+/**
+ * Persistent position of a long running import, written after every committed chunk so an import
+ * that got killed can continue where it stopped. A checkpoint only applies to the source file it
+ * was written for, a replaced or modified file starts from the beginning again.
+ */
+final class ImportCheckpoint {
+
+  private static final String TAG = Log.tag(ImportCheckpoint.class);
+
+  private static final char SEPARATOR = '|';
+
+  private final Context context;
+  private final String  preferenceKey;
+  private final String  fingerprint;
+
+  private ImportCheckpoint(Context context, String preferenceKey, String fingerprint) {
+    this.context       = context;
+    this.preferenceKey = preferenceKey;
+    this.fingerprint   = fingerprint;
+  }
+
+  static ImportCheckpoint forFile(@NonNull Context context, @NonNull String preferenceKey, @NonNull File source) {
+    return new ImportCheckpoint(context, preferenceKey, source.getAbsolutePath() + ":" + source.length() + ":" + source.lastModified());
+  }
+
+  /**
+   * @return the stored position for this source, or 0 if there is none.
+   */
+  long get() {
+    String stored = TextSecurePreferences.getStringPreference(context, preferenceKey, null);
+    if (stored == null) return 0;
+
+    int separator = stored.lastIndexOf(SEPARATOR);
+    if (separator < 0 || !stored.substring(0, separator).equals(fingerprint)) {
+      Log.i(TAG, "Ignoring checkpoint of another source for " + preferenceKey);
+      return 0;
+    }
+
+    try {
+      return Long.parseLong(stored.substring(separator + 1));
+    } catch (NumberFormatException e) {
+      Log.w(TAG, "Invalid checkpoint for " + preferenceKey + ": " + stored);
+      return 0;
+    }
+  }
+
+  void set(long position) {
+    TextSecurePreferences.setStringPreference(context, preferenceKey, fingerprint + SEPARATOR + position);
+  }
+
+  void clear() {
+    TextSecurePreferences.setStringPreference(context, preferenceKey, null);
+  }
+}
@@ -0,0 +1,118 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+
+import androidx.collection.LongSparseArray;
+
+import org.signal.core.util.logging.Log;
+
+/**
+ * In-memory index of the (sent date, sender) pairs per thread that are already in the message
+ * table, used to skip duplicates when an import is run again. A thread is read with one query the
+ * first time it is probed, after that every check is a hash probe. Imported messages have to be
+ * added with {@link #add} so duplicates within the same import are caught as well.
+ */
+final class ImportDedupeIndex {
+
+    private static final String TAG = ImportDedupeIndex.class.getSimpleName();
+
+    private final MessageTable             messageTable;
+    private final LongSparseArray<PairSet> threads = new LongSparseArray<>();
+
+    ImportDedupeIndex(MessageTable messageTable) {
+        this.messageTable = messageTable;
+    }
+
+    boolean contains(long threadId, long dateSent, long fromRecipientId) {
+        return getThread(threadId).contains(dateSent, fromRecipientId);
+    }
+
+    void add(long threadId, long dateSent, long fromRecipientId) {
+        getThread(threadId).add(dateSent, fromRecipientId);
+    }
+
+    private PairSet getThread(long threadId) {
+        PairSet set = threads.get(threadId);
+
+        if (set == null) {
+            try (Cursor cursor = messageTable.getDateSentAndSenders(threadId)) {
+                set = new PairSet(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    set.add(cursor.getLong(0), cursor.getLong(1));
+                }
+            }
+            Log.i(TAG, "Indexed " + set.size() + " messages of thread " + threadId);
+            threads.put(threadId, set);
+        }
+        return set;
+    }
+
+    /**
+     * Open addressing hash set of long pairs with linear probing, stored in two primitive arrays
+     * so the keys are compared exactly and nothing is boxed.
+     */
+    private static final class PairSet {
+        private long[]    firsts;
+        private long[]    seconds;
+        private boolean[] used;
+        private int       size;
+
+        PairSet(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2) capacity <<= 1;
+            allocate(capacity);
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean contains(long first, long second) {
+            int mask = used.length - 1;
+            for (int i = hash(first, second) & mask; used[i]; i = (i + 1) & mask) {
+                if (firsts[i] == first && seconds[i] == second) return true;
+            }
+            return false;
+        }
+
+        void add(long first, long second) {
+            int mask = used.length - 1;
+            int i    = hash(first, second) & mask;
+
+            for (; used[i]; i = (i + 1) & mask) {
+                if (firsts[i] == first && seconds[i] == second) return;
+            }
+
+            used[i]    = true;
+            firsts[i]  = first;
+            seconds[i] = second;
+
+            if (++size * 2 > used.length) grow();
+        }
+
+        private void grow() {
+            long[]    oldFirsts  = firsts;
+            long[]    oldSeconds = seconds;
+            boolean[] oldUsed    = used;
+
+            allocate(oldUsed.length << 1);
+            size = 0;
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) add(oldFirsts[i], oldSeconds[i]);
+            }
+        }
+
+        private void allocate(int capacity) {
+            firsts  = new long[capacity];
+            seconds = new long[capacity];
+            used    = new boolean[capacity];
+        }
+
+        private static int hash(long first, long second) {
+            long h = first * 0x9E3779B97F4A7C15L + second;
+            h ^= h >>> 32;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (h ^ (h >>> 29));
+        }
+    }
+}
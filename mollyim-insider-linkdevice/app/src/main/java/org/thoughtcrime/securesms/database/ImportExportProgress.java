@@ -0,0 +1,164 @@
+package org.thoughtcrime.securesms.database;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Progress of an import or export, reported to a {@link Listener} at most once per throttle
+ * interval no matter how often the worker calls {@link #update}. Every report carries the phase,
+ * the processed and total counts, the rate of the current phase and an estimate of the time left.
+ *
+ * An instance is meant to be updated by one worker thread at a time, the listener is called on
+ * that thread.
+ */
+public final class ImportExportProgress {
+
+  public static final long DEFAULT_THROTTLE_MS = 100;
+
+  public enum Phase {
+    PREPARING,
+    IMPORTING,
+    EXPORTING,
+    COMPRESSING,
+    EXTRACTING,
+    COPYING,
+    FINISHING
+  }
+
+  public interface Listener {
+    void onProgress(@NonNull Snapshot progress);
+  }
+
+  private final Listener listener;
+  private final long     throttleMs;
+
+  private Phase phase      = Phase.PREPARING;
+  private long  total      = -1;
+  private long  processed;
+  private long  phaseStart = SystemClock.elapsedRealtime();
+  private long  phaseStartProcessed;
+  private long  lastReport;
+
+  /**
+   * @return a progress that reports nowhere, for callers that do not show any progress.
+   */
+  public static @NonNull ImportExportProgress none() {
+    return new ImportExportProgress(progress -> {}, Long.MAX_VALUE);
+  }
+
+  public ImportExportProgress(@NonNull Listener listener) {
+    this(listener, DEFAULT_THROTTLE_MS);
+  }
+
+  public ImportExportProgress(@NonNull Listener listener, long throttleMs) {
+    this.listener   = listener;
+    this.throttleMs = throttleMs;
+  }
+
+  /**
+   * Starts a new phase, which is always reported.
+   *
+   * @param total number of items in this phase, or -1 if it is unknown.
+   */
+  public void setPhase(@NonNull Phase phase, long total) {
+    this.phase               = phase;
+    this.total               = total;
+    this.phaseStart          = SystemClock.elapsedRealtime();
+    this.phaseStartProcessed = processed;
+    report(phaseStart);
+  }
+
+  /**
+   * Updates the number of items of the current phase once it becomes known.
+   */
+  public void setTotal(long total) {
+    this.total = total;
+  }
+
+  /**
+   * Continues the count of the current phase from an earlier run, for example after a resume.
+   * Items skipped this way do not count towards the rate.
+   */
+  public void setProcessed(long processed) {
+    this.processed           = processed;
+    this.phaseStartProcessed = processed;
+  }
+
+  public void update(long processed) {
+    this.processed = processed;
+
+    long now = SystemClock.elapsedRealtime();
+    if (now - lastReport >= throttleMs) {
+      report(now);
+    }
+  }
+
+  public void increment() {
+    update(processed + 1);
+  }
+
+  /**
+   * Reports the final state of the current phase regardless of the throttle.
+   */
+  public void finish() {
+    report(SystemClock.elapsedRealtime());
+  }
+
+  private void report(long now) {
+    lastReport = now;
+
+    long   elapsed = now - phaseStart;
+    double rate    = elapsed > 0 ? (processed - phaseStartProcessed) * 1000d / elapsed : 0;
+    long   eta     = total >= 0 && rate > 0 ? (long) (Math.max(0, total - processed) * 1000 / rate) : -1;
+
+    listener.onProgress(new Snapshot(phase, processed, total, rate, eta));
+  }
+
+  public static final class Snapshot {
+    private final Phase  phase;
+    private final long   processed;
+    private final long   total;
+    private final double ratePerSecond;
+    private final long   etaMs;
+
+    private Snapshot(Phase phase, long processed, long total, double ratePerSecond, long etaMs) {
+      this.phase         = phase;
+      this.processed     = processed;
+      this.total         = total;
+      this.ratePerSecond = ratePerSecond;
+      this.etaMs         = etaMs;
+    }
+
+    public @NonNull Phase getPhase() {
+      return phase;
+    }
+
+    public long getProcessed() {
+      return processed;
+    }
+
+    /**
+     * @return the number of items of the phase, or -1 if it is unknown.
+     */
+    public long getTotal() {
+      return total;
+    }
+
+    public double getRatePerSecond() {
+      return ratePerSecond;
+    }
+
+    /**
+     * @return the estimated time left in milliseconds, or -1 if it can not be estimated.
+     */
+    public long getEtaMs() {
+      return etaMs;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return phase + " " + processed + "/" + total + " at " + Math.round(ratePerSecond) + "/s, eta " + etaMs + " ms";
+    }
+  }
+}
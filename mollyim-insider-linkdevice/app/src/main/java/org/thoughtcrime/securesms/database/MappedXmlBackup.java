@@ -0,0 +1,455 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader for plaintext backup files that scans the sms elements straight from a memory mapping of
+ * the file, for restores. Only the attributes the restore uses are read.
+ *
+ * Attribute names are looked up with a perfect hash of their length, first and last byte and
+ * verified against the expected name, so unknown attributes of other backup apps are skipped.
+ * Numbers are parsed from the bytes. Of the text attributes only address and body are decoded, once
+ * the element is complete, the others are left null.
+ *
+ * Comments, processing instructions and other elements are skipped. CDATA sections and DTDs are
+ * not supported, which no SMS backup uses. Like the XML parser it fails on a file that ends before
+ * the smses element is complete, so a truncated backup is noticed.
+ */
+final class MappedXmlBackup implements PlaintextBackupReader {
+
+  private static final byte[] SMSES = "smses".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] SMS   = "sms".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] COUNT = "count".getBytes(StandardCharsets.US_ASCII);
+
+  private static final char REPLACEMENT = '\uFFFD';
+
+  private static final int PROTOCOL  = 0;
+  private static final int ADDRESS   = 1;
+  private static final int DATE      = 2;
+  private static final int TYPE      = 3;
+  private static final int BODY      = 4;
+  private static final int READ      = 5;
+  private static final int STATUS    = 6;
+  private static final int RECIPIENT = 7;
+  private static final int OTHER     = -1;
+
+  // The names up to RECIPIENT are in the order of their ids, the others are known but not read
+  private static final String[] NAMES = { "protocol", "address", "date", "type", "body", "read", "status", "torecipient",
+                                          "contact_name", "readable_date", "subject", "service_center", "toa", "sc_toa",
+                                          "locked", "transport" };
+
+  private static final int      TABLE_SIZE = 32;
+  private static final byte[][] SLOT_NAMES = new byte[TABLE_SIZE][];
+  private static final int[]    SLOT_IDS   = new int[TABLE_SIZE];
+
+  static {
+    for (int i = 0; i < NAMES.length; i++) {
+      byte[] name = NAMES[i].getBytes(StandardCharsets.US_ASCII);
+      int    slot = slot(name.length, name[0], name[name.length - 1]);
+
+      if (SLOT_NAMES[slot] != null) {
+        throw new AssertionError("Attribute hash collision for " + NAMES[i]);
+      }
+      SLOT_NAMES[slot] = name;
+      SLOT_IDS[slot]   = i <= RECIPIENT ? i : OTHER;
+    }
+  }
+
+  private final MappedByteBuffer buffer;
+  private final int              limit;
+
+  private int     position;
+  private long    count = -1;
+  private char[]  chars = new char[256];
+  private boolean complete;
+
+  // Offsets of the text attribute values of the current element, decoded once it is complete
+  private int addressStart;
+  private int addressEnd;
+  private int bodyStart;
+  private int bodyEnd;
+
+  // Bounds of the last attribute found by nextAttribute()
+  private int nameStart;
+  private int nameEnd;
+  private int valueStart;
+  private int valueEnd;
+
+  MappedXmlBackup(@NonNull File file) throws IOException {
+    try (FileChannel channel = new FileInputStream(file).getChannel()) {
+      long size = channel.size();
+
+      if (!canMap(size)) {
+        throw new IOException(file.getAbsolutePath() + " is too large to map, " + size + " bytes");
+      }
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      this.limit  = (int) size;
+    }
+  }
+
+  /**
+   * A single mapping is limited to 2 GiB, larger files have to be read with {@link XmlBackup}.
+   */
+  static boolean canMap(@NonNull File file) {
+    return canMap(file.length());
+  }
+
+  private static boolean canMap(long size) {
+    return size <= Integer.MAX_VALUE;
+  }
+
+  @Override
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public @Nullable XmlBackup.XmlBackupItem getNext() throws IOException {
+    while (true) {
+      int start = indexOf('<', position);
+      if (start < 0) {
+        position = limit;
+        if (!complete) {
+          throw new IOException("Unexpected end of file before the end of the smses element");
+        }
+        return null;
+      }
+
+      byte next = byteAt(start + 1);
+
+      if (next == '!' && byteAt(start + 2) == '-' && byteAt(start + 3) == '-') {
+        position = skipPast("-->", start + 4);
+      } else if (next == '?') {
+        position = skipPast("?>", start + 2);
+      } else if (next == '/') {
+        if (equalsIgnoreCase(start + 2, skipName(start + 2), SMSES)) {
+          complete = true;
+        }
+        position = skipPast(">", start + 2);
+      } else if (next == '!') {
+        position = skipPast(">", start + 2);
+      } else {
+        int nameEnd = skipName(start + 1);
+        position = nameEnd;
+
+        if (equalsIgnoreCase(start + 1, nameEnd, SMS)) {
+          XmlBackup.XmlBackupItem item = readItem();
+          if (item != null) return item;
+        } else if (equalsIgnoreCase(start + 1, nameEnd, SMSES)) {
+          readCount();
+          complete = byteAt(position - 2) == '/';
+        } else {
+          while (nextAttribute()) { }
+        }
+      }
+    }
+  }
+
+  private @Nullable XmlBackup.XmlBackupItem readItem() throws IOException {
+    int  protocol    = 0;
+    long date        = 0;
+    int  type        = 0;
+    int  read        = 0;
+    int  status      = 0;
+    long torecipient = 0;
+    int  attributes  = 0;
+
+    addressStart = addressEnd = -1;
+    bodyStart    = bodyEnd    = -1;
+
+    while (nextAttribute()) {
+      attributes++;
+
+      switch (lookup(nameStart, nameEnd)) {
+        case PROTOCOL:  protocol     = (int) parseLong(valueStart, valueEnd); break;
+        case DATE:      date         = parseLong(valueStart, valueEnd);       break;
+        case TYPE:      type         = (int) parseLong(valueStart, valueEnd); break;
+        case READ:      read         = (int) parseLong(valueStart, valueEnd); break;
+        case STATUS:    status       = (int) parseLong(valueStart, valueEnd); break;
+        case RECIPIENT: torecipient  = parseLong(valueStart, valueEnd);       break;
+        case ADDRESS:   addressStart = valueStart; addressEnd = valueEnd;     break;
+        case BODY:      bodyStart    = valueStart; bodyEnd    = valueEnd;     break;
+      }
+    }
+
+    if (attributes == 0) {
+      return null;
+    }
+
+    return new XmlBackup.XmlBackupItem(protocol, decode(addressStart, addressEnd), null, date, type,
+                                       null, decode(bodyStart, bodyEnd), null, read, status,
+                                       null, torecipient);
+  }
+
+  private void readCount() throws IOException {
+    while (nextAttribute()) {
+      if (equalsIgnoreCase(nameStart, nameEnd, COUNT)) {
+        try {
+          count = parseLong(valueStart, valueEnd);
+        } catch (IOException e) {
+          count = -1;
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the next attribute of the current start tag, or moves past the end of the tag.
+   *
+   * @return false at the end of the tag.
+   */
+  private boolean nextAttribute() throws IOException {
+    int i = skipWhitespace(position);
+
+    if (i >= limit) {
+      throw new IOException("Unexpected end of file in tag");
+    }
+
+    byte b = buffer.get(i);
+    if (b == '>') {
+      position = i + 1;
+      return false;
+    } else if (b == '/') {
+      position = skipPast(">", i + 1);
+      return false;
+    }
+
+    nameStart = i;
+    while (i < limit && !isNameEnd(buffer.get(i)) && buffer.get(i) != '=') i++;
+    nameEnd = i;
+
+    i = skipWhitespace(i);
+    if (byteAt(i) != '=') {
+      throw new IOException("Expected = after attribute name at offset " + i);
+    }
+
+    i = skipWhitespace(i + 1);
+    byte quote = byteAt(i);
+    if (quote != '"' && quote != '\'') {
+      throw new IOException("Expected quoted attribute value at offset " + i);
+    }
+
+    valueStart = i + 1;
+    valueEnd   = indexOf(quote, valueStart);
+    if (valueEnd < 0) {
+      throw new IOException("Unterminated attribute value at offset " + i);
+    }
+
+    position = valueEnd + 1;
+    return true;
+  }
+
+  private static int slot(int length, int first, int last) {
+    return (first + last * 12 + length) & (TABLE_SIZE - 1);
+  }
+
+  private int lookup(int start, int end) {
+    int length = end - start;
+    if (length == 0) return OTHER;
+
+    int    slot = slot(length, buffer.get(start), buffer.get(end - 1));
+    byte[] name = SLOT_NAMES[slot];
+
+    if (name == null || name.length != length) return OTHER;
+
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(start + i) != name[i]) return OTHER;
+    }
+    return SLOT_IDS[slot];
+  }
+
+  private long parseLong(int start, int end) throws IOException {
+    boolean negative = start < end && buffer.get(start) == '-';
+    int     i        = negative ? start + 1 : start;
+
+    if (i == end || end - i > 18) {
+      throw new IOException("Invalid number at offset " + start);
+    }
+
+    long value = 0;
+    for (; i < end; i++) {
+      int digit = buffer.get(i) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new IOException("Invalid number at offset " + start);
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Decodes an attribute value from UTF-8 and resolves its entity and character references. Line
+   * breaks and tabs are normalized to spaces like an XML parser does.
+   */
+  private @Nullable String decode(int start, int end) throws IOException {
+    if (start < 0) return null;
+
+    // A value never has more UTF-16 units than bytes
+    if (chars.length < end - start) {
+      chars = new char[Math.max(end - start, chars.length * 2)];
+    }
+
+    int length = 0;
+    int i      = start;
+
+    while (i < end) {
+      int b = buffer.get(i) & 0xff;
+
+      if (b < 0x80) {
+        if (b == '&') {
+          int semicolon = indexOf((byte) ';', i + 1);
+          if (semicolon < 0 || semicolon >= end) {
+            throw new IOException("Unterminated reference at offset " + i);
+          }
+          length = appendReference(i + 1, semicolon, length);
+          i      = semicolon + 1;
+        } else if (b == '\r') {
+          chars[length++] = ' ';
+          i += (i + 1 < end && buffer.get(i + 1) == '\n') ? 2 : 1;
+        } else {
+          chars[length++] = (b == '\n' || b == '\t') ? ' ' : (char) b;
+          i++;
+        }
+        continue;
+      }
+
+      int needed;
+      int codePoint;
+      if      (b >= 0xc2 && b < 0xe0)  { needed = 1; codePoint = b & 0x1f; }
+      else if (b >= 0xe0 && b < 0xf0)  { needed = 2; codePoint = b & 0x0f; }
+      else if (b >= 0xf0 && b <= 0xf4) { needed = 3; codePoint = b & 0x07; }
+      else                             { needed = 0; codePoint = REPLACEMENT; }
+
+      // An invalid continuation byte is not consumed, it is decoded again as the start of a sequence
+      i++;
+      for (int k = 0; k < needed; k++, i++) {
+        int continuation = i < end ? buffer.get(i) & 0xff : 0;
+        if ((continuation & 0xc0) != 0x80) {
+          codePoint = REPLACEMENT;
+          break;
+        }
+        codePoint = (codePoint << 6) | (continuation & 0x3f);
+      }
+
+      length = appendCodePoint(codePoint, length);
+    }
+
+    return new String(chars, 0, length);
+  }
+
+  private int appendReference(int start, int end, int length) throws IOException {
+    int nameLength = end - start;
+
+    if (nameLength > 1 && buffer.get(start) == '#') {
+      boolean hex   = buffer.get(start + 1) == 'x';
+      int     i     = hex ? start + 2 : start + 1;
+      int     value = 0;
+
+      if (i == end || end - i > 7) {
+        throw new IOException("Invalid character reference at offset " + start);
+      }
+
+      for (; i < end; i++) {
+        int digit = Character.digit(buffer.get(i), hex ? 16 : 10);
+        if (digit < 0) {
+          throw new IOException("Invalid character reference at offset " + start);
+        }
+        value = value * (hex ? 16 : 10) + digit;
+      }
+      return appendCodePoint(value, length);
+    }
+
+    char c;
+    if      (nameLength == 3 && startsWith(start, "amp"))  c = '&';
+    else if (nameLength == 2 && startsWith(start, "lt"))   c = '<';
+    else if (nameLength == 2 && startsWith(start, "gt"))   c = '>';
+    else if (nameLength == 4 && startsWith(start, "quot")) c = '"';
+    else if (nameLength == 4 && startsWith(start, "apos")) c = '\'';
+    else throw new IOException("Unknown entity reference at offset " + start);
+
+    chars[length] = c;
+    return length + 1;
+  }
+
+  // References and 4 byte sequences can need 2 chars, but they always take more bytes than that
+  private int appendCodePoint(int codePoint, int length) {
+    if (codePoint > Character.MAX_CODE_POINT) {
+      chars[length++] = REPLACEMENT;
+    } else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+      chars[length++] = Character.highSurrogate(codePoint);
+      chars[length++] = Character.lowSurrogate(codePoint);
+    } else {
+      chars[length++] = (char) codePoint;
+    }
+    return length;
+  }
+
+  private int indexOf(char c, int from) {
+    return indexOf((byte) c, from);
+  }
+
+  private int indexOf(byte b, int from) {
+    for (int i = from; i < limit; i++) {
+      if (buffer.get(i) == b) return i;
+    }
+    return -1;
+  }
+
+  private int skipPast(String terminator, int from) throws IOException {
+    byte first  = (byte) terminator.charAt(0);
+    int  length = terminator.length();
+
+    for (int i = indexOf(first, from); i >= 0; i = indexOf(first, i + 1)) {
+      if (i + length <= limit && startsWith(i, terminator)) {
+        return i + length;
+      }
+    }
+    throw new IOException("Missing " + terminator + " after offset " + from);
+  }
+
+  private int skipName(int i) {
+    while (i < limit && !isNameEnd(buffer.get(i))) i++;
+    return i;
+  }
+
+  private int skipWhitespace(int i) {
+    while (i < limit && isWhitespace(buffer.get(i))) i++;
+    return i;
+  }
+
+  private boolean startsWith(int start, String prefix) {
+    for (int i = 0; i < prefix.length(); i++) {
+      if (buffer.get(start + i) != prefix.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private boolean equalsIgnoreCase(int start, int end, byte[] lowerCase) {
+    if (end - start != lowerCase.length) return false;
+
+    for (int i = 0; i < lowerCase.length; i++) {
+      if ((buffer.get(start + i) | 0x20) != lowerCase[i]) return false;
+    }
+    return true;
+  }
+
+  private byte byteAt(int i) {
+    return i < limit ? buffer.get(i) : 0;
+  }
+
+  private static boolean isNameEnd(byte b) {
+    return b == '/' || b == '>' || isWhitespace(b);
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+}
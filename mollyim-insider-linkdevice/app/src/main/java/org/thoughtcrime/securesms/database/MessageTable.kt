@@ -5478,9 +5478,37 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       .readToSingleInt()
   }
 
-  fun getMessages(skip: Int, limit: Int): Cursor {
-    val db = databaseHelper.signalReadableDatabase
-    return db.query(TABLE_NAME, MMS_PROJECTION, null, null, null, null, ID, skip.toString().plus(",").plus(limit.toString()))
+  // JW: all senders that occur in the message table, used to warm the plaintext export caches
+  fun getDistinctFromRecipientIds(): Set<RecipientId> {
+    return readableDatabase
+      .select("DISTINCT $FROM_RECIPIENT_ID")
+      .from(TABLE_NAME)
+      .run()
+      .readToSet { cursor ->
+        RecipientId.from(cursor.requireLong(FROM_RECIPIENT_ID))
+      }
+  }
+
+  // JW: keyset paginated reader for the plaintext export. Walks the table by _id instead of
+  // LIMIT skip,limit so every page is an index seek and not a re-scan of all previous rows.
+  fun getMessagesAfter(lastId: Long, limit: Int): Cursor {
+    return readableDatabase
+      .select(*MMS_PROJECTION)
+      .from(TABLE_NAME)
+      .where("$ID > ?", lastId)
+      .orderBy("$ID ASC")
+      .limit(limit)
+      .run()
+  }
+
+  // JW: sent date and sender of every message in a thread, used to build the duplicate index of
+  // the WhatsApp import. Only reads the two columns so the scan is cheap even for long threads.
+  fun getDateSentAndSenders(threadId: Long): Cursor {
+    return readableDatabase
+      .select(DATE_SENT, FROM_RECIPIENT_ID)
+      .from(TABLE_NAME)
+      .where("$THREAD_ID = ?", threadId)
+      .run()
   }
   //---------------------------------------------------------------------------
 }
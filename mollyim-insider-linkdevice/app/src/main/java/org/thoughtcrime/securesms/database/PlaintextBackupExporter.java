@@ -3,25 +3,51 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
+
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.util.FileUtilsJW;
+import org.thoughtcrime.securesms.util.ParallelGzipOutputStream;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
 
 public class PlaintextBackupExporter {
   private static final String TAG = Log.tag(PlaintextBackupExporter.class);
 
   private static final String FILENAME = "MollyPlaintextBackup.xml";
+  private static final String BINARY_FILENAME = "MollyPlaintextBackup.bin";
   private static final String ZIPFILENAME = "MollyPlaintextBackup.zip";
 
+  public static final int DEFAULT_PAGE_SIZE = 500;
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
   public static void exportPlaintextToSd(Context context)
       throws NoExternalStorageException, IOException
   {
-    exportPlaintext(context);
+    exportPlaintextToSd(context, ImportExportProgress.none());
+  }
+
+  public static void exportPlaintextToSd(Context context, ImportExportProgress progress)
+      throws NoExternalStorageException, IOException
+  {
+    exportPlaintextToSd(context, DEFAULT_PAGE_SIZE, progress);
+  }
+
+  public static void exportPlaintextToSd(Context context, int pageSize, ImportExportProgress progress)
+      throws NoExternalStorageException, IOException
+  {
+    exportPlaintext(context, Math.max(1, pageSize), progress);
   }
 
   public static File getPlaintextExportFile() throws NoExternalStorageException {
@@ -32,64 +58,121 @@ public class PlaintextBackupExporter {
     return new File(StorageUtil.getBackupPlaintextDirectory(), ZIPFILENAME);
   }
 
-  private static void exportPlaintext(Context context)
+  private static void exportPlaintext(Context context, int pageSize, ImportExportProgress progress)
       throws NoExternalStorageException, IOException
   {
-    MessageTable     messagetable = SignalDatabase.messages();
-    int              count        = messagetable.getMessageCount();
-    XmlBackup.Writer writer       = new XmlBackup.Writer(getPlaintextExportFile().getAbsolutePath(), count);
-
-    MessageRecord record;
-
-    MessageTable.MmsReader messagereader = null;
-    int                    skip      = 0;
-    int                    ROW_LIMIT = 500;
-
-    do {
-      if (messagereader != null)
-        messagereader.close();
-
-      messagereader = messagetable.mmsReaderFor(messagetable.getMessages(skip, ROW_LIMIT));
-
-      try {
-        while ((record = messagereader.getNext()) != null) {
-          XmlBackup.XmlBackupItem item =
-              new XmlBackup.XmlBackupItem(0,
-                                          record.getFromRecipient().getSmsAddress().orElse("null"),
-                                          record.getFromRecipient().getDisplayName(context),
-                                          record.getDateReceived(),
-                                          translateToSystemBaseType(record.getType()),
-                                          null,
-                                          record.getDisplayBody(context).toString(),
-                                          null,
-                                          1,
-                                          record.getDeliveryStatus(),
-                                          getTransportType(record),
-                                          record.getToRecipient().getId().toLong());
-
-          writer.writeItem(item);
-        }
-      }
-      catch (Exception e) {
-        Log.w(TAG, "messagereader.getNext() failed: " + e.getMessage());
+    MessageTable         messagetable = SignalDatabase.messages();
+    int                  count        = messagetable.getMessageCount();
+    boolean              compact      = TextSecurePreferences.isPlainBackupCompact(context);
+    ExportRecipientCache recipients   = ExportRecipientCache.load(context);
+    boolean              binary       = TextSecurePreferences.isPlainBackupBinary(context);
+    String               filename     = binary ? BINARY_FILENAME : FILENAME;
+
+    if (!TextSecurePreferences.isPlainBackupInZipfile(context)) {
+      File                  file   = new File(StorageUtil.getBackupPlaintextDirectory(), filename);
+      PlaintextBackupWriter writer = newWriter(new FileOutputStream(file, false), count, compact, binary);
+      writeMessages(context, messagetable, writer, recipients, count, pageSize, progress);
+      return;
+    }
+
+    File zipfile = getPlaintextZipFile();
+    if (zipfile.exists()) {
+      zipfile.delete();
+    }
+
+    String profile  = TextSecurePreferences.getPlainBackupCompression(context);
+    String password = FileUtilsJW.getBackupPassword(context);
+
+    if (FileUtilsJW.COMPRESSION_STORE.equals(profile) || FileUtilsJW.COMPRESSION_PARALLEL.equals(profile)) {
+      exportStaged(context, zipfile, filename, profile, password, messagetable, recipients, count, compact, binary, pageSize, progress);
+    } else {
+      // The backup goes straight into the deflated zip entry, no plaintext is written to storage
+      try (ZipOutputStream zip = FileUtilsJW.openEncryptedZipOutputStream(zipfile, password)) {
+        zip.putNextEntry(FileUtilsJW.getPlaintextStreamEntryParameters(profile, filename, -1, password));
+        PlaintextBackupWriter writer = newWriter(new EntryOutputStream(zip), count, compact, binary);
+        writeMessages(context, messagetable, writer, recipients, count, pageSize, progress);
+        zip.closeEntry();
       }
+    }
 
-      skip += ROW_LIMIT;
-    } while (messagereader.getCount() > 0);
+    // Left behind by exports that zipped the XML afterwards
+    FileUtilsJW.secureDelete(getPlaintextExportFile());
+  }
 
-    writer.close();
+  // Stored entries need their size before the data, so the backup is written to the app's private
+  // cache dir first and copied into the zipfile from there. The parallel profile gzips it on the way.
+  private static void exportStaged(Context context, File zipfile, String filename, String profile, String password, MessageTable messagetable,
+                                   ExportRecipientCache recipients, int count, boolean compact, boolean binary, int pageSize,
+                                   ImportExportProgress progress)
+      throws IOException
+  {
+    boolean parallel = FileUtilsJW.COMPRESSION_PARALLEL.equals(profile);
+    File    staged   = new File(context.getCacheDir(), parallel ? filename + FileUtilsJW.GZIP_SUFFIX : filename);
 
-    if (TextSecurePreferences.isPlainBackupInZipfile(context)) {
-      File test = new File(getPlaintextZipFile().getAbsolutePath());
-      if (test.exists()) {
-        test.delete();
+    try {
+      OutputStream out = new FileOutputStream(staged);
+      if (parallel) {
+        out = new ParallelGzipOutputStream(out, Deflater.DEFAULT_COMPRESSION);
       }
-      FileUtilsJW.createEncryptedPlaintextZipfile(context, getPlaintextZipFile().getAbsolutePath(), getPlaintextExportFile().getAbsolutePath());
-      getPlaintextExportFile().delete(); // Insecure, leaves possibly recoverable plaintext on device
-      // FileUtilsJW.secureDelete(getPlaintextExportFile()); // much too slow
+      writeMessages(context, messagetable, newWriter(out, count, compact, binary), recipients, count, pageSize, progress);
+
+      progress.setPhase(ImportExportProgress.Phase.COMPRESSING, -1);
+      try (ZipOutputStream zip = FileUtilsJW.openEncryptedZipOutputStream(zipfile, password);
+           InputStream     in  = new FileInputStream(staged))
+      {
+        zip.putNextEntry(FileUtilsJW.getPlaintextStreamEntryParameters(profile, staged.getName(), staged.length(), password));
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int    read;
+        while ((read = in.read(buffer)) != -1) {
+          zip.write(buffer, 0, read);
+        }
+        zip.closeEntry();
+      }
+      progress.finish();
+    } finally {
+      FileUtilsJW.secureDelete(staged);
+    }
+  }
+
+  private static PlaintextBackupWriter newWriter(OutputStream out, int count, boolean compact, boolean binary) throws IOException {
+    return binary ? new BinaryBackup.Writer(out, count) : new XmlBackup.Writer(out, count, compact);
+  }
+
+  // Only a complete export finishes the backup. The writer, and with it the stream it writes to,
+  // is closed also when the export fails.
+  private static void writeMessages(Context context, MessageTable messagetable, PlaintextBackupWriter writer, ExportRecipientCache recipients,
+                                    int count, int pageSize, ImportExportProgress progress)
+      throws IOException
+  {
+    try {
+      progress.setPhase(ImportExportProgress.Phase.EXPORTING, count);
+      new PlaintextExportPipeline(context, messagetable, writer, recipients, pageSize, progress).run();
+      writer.finish();
+      progress.finish();
+    } finally {
+      writer.close();
     }
   }
 
+  static XmlBackup.XmlBackupItem toXmlBackupItem(Context context, ExportRecipientCache recipients, MessageRecord record,
+                                                 long fromRecipientId, long toRecipientId)
+  {
+    ExportRecipientCache.Snapshot from = recipients.get(fromRecipientId);
+
+    return new XmlBackup.XmlBackupItem(0,
+                                       from.getAddress(),
+                                       from.getDisplayName(),
+                                       record.getDateReceived(),
+                                       translateToSystemBaseType(record.getType()),
+                                       null,
+                                       record.getDisplayBody(context).toString(),
+                                       null,
+                                       1,
+                                       record.getDeliveryStatus(),
+                                       getTransportType(record),
+                                       toRecipientId);
+  }
+
   private static String getTransportType(MessageRecord messageRecord) {
     String transportText = "-";
     if (messageRecord.isOutgoing() && messageRecord.isFailed()) {
@@ -130,4 +213,21 @@ public class PlaintextBackupExporter {
   public static boolean isFailedMessageType(long type) {
     return (type & MessageTypes.BASE_TYPE_MASK) == MessageTypes.BASE_SENT_FAILED_TYPE;
   }
+
+  // Keeps the zip open when the writer closes its stream, the entry is closed separately
+  private static final class EntryOutputStream extends FilterOutputStream {
+    EntryOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
 }
@@ -2,23 +2,32 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.model.LocalFileHeader;
 import net.zetetic.database.sqlcipher.SQLiteStatement;
 
 import org.signal.core.util.logging.Log;
-import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.FileUtilsJW;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashSet;
+import java.io.InputStream;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 public class PlaintextBackupImporter {
   private static final String TAG = Log.tag(PlaintextBackupImporter.class);
 
+  private static final String FILENAME        = "MollyPlaintextBackup.xml";
+  private static final String BINARY_FILENAME = "MollyPlaintextBackup.bin";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   public static SQLiteStatement createMessageInsertStatement(SQLiteDatabase database) {
     return database.compileStatement("INSERT INTO " + MessageTable.TABLE_NAME + " (" +
                                      MessageTable.FROM_RECIPIENT_ID + ", " +
@@ -33,70 +42,122 @@ public class PlaintextBackupImporter {
                                      " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
   }
 
+  public static final int DEFAULT_CHUNK_SIZE = 5000;
+
   public static void importPlaintextFromSd(Context context) throws NoExternalStorageException, IOException
+  {
+    importPlaintextFromSd(context, ImportExportProgress.none());
+  }
+
+  public static void importPlaintextFromSd(Context context, ImportExportProgress progress) throws NoExternalStorageException, IOException
+  {
+    importPlaintextFromSd(context, DEFAULT_CHUNK_SIZE, progress);
+  }
+
+  /**
+   * Imports the plaintext backup in transactions of chunkSize messages. The position of every
+   * committed chunk is checkpointed, so an import of the same file that was interrupted continues
+   * after the last committed chunk instead of inserting everything again.
+   *
+   * The format is detected from the backup itself, so a backup is still found and read after the
+   * binary setting was toggled.
+   */
+  public static void importPlaintextFromSd(Context context, int chunkSize, ImportExportProgress progress) throws NoExternalStorageException, IOException
   {
     Log.i(TAG, "importPlaintext()");
-    // Unzip zipfile first if required
-    if (TextSecurePreferences.isPlainBackupInZipfile(context)) {
-      File zipFile = getPlaintextExportZipFile();
-      FileUtilsJW.extractEncryptedZipfile(context, zipFile.getAbsolutePath(), StorageUtil.getBackupPlaintextDirectory().getAbsolutePath());
+    boolean inZipfile = TextSecurePreferences.isPlainBackupInZipfile(context);
+    File    source    = inZipfile ? getPlaintextExportZipFile() : findPlaintextExportFile(TextSecurePreferences.isPlainBackupBinary(context));
+
+    ImportCheckpoint checkpoint = ImportCheckpoint.forFile(context, TextSecurePreferences.PLAINTEXT_IMPORT_CHECKPOINT, source);
+    long             resumeAt   = checkpoint.get();
+
+    if (resumeAt > 0) {
+      Log.i(TAG, "Resuming import after item " + resumeAt);
     }
-    MessageTable   table       = SignalDatabase.messages();
-    SQLiteDatabase transaction = table.beginTransaction();
+
+    InputStream  in          = new BufferedInputStream(openPlaintextBackup(context, source, inZipfile), BUFFER_SIZE);
+    MessageTable table       = SignalDatabase.messages();
+    ThreadTable  threadTable = SignalDatabase.threads();
 
     try {
-      ThreadTable    threadTable     = SignalDatabase.threads();
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportFile().getAbsolutePath());
-      Set<Long>      modifiedThreads = new HashSet<>();
-      XmlBackup.XmlBackupItem item;
-
-      // TODO: we might have to split this up in chunks of about 5000 messages to prevent these errors:
-      // java.util.concurrent.TimeoutException: net.sqlcipher.database.SQLiteCompiledSql.finalize() timed out after 10 seconds
-      while ((item = backup.getNext()) != null) {
-        Recipient       recipient  = Recipient.external(context, item.getAddress());
-        long            threadId   = threadTable.getOrCreateThreadIdFor(recipient);
-        SQLiteStatement statement  = createMessageInsertStatement(transaction);
-
-        if (item.getAddress() == null || item.getAddress().equals("null"))
-          continue;
-
-        if (!isAppropriateTypeForImport(item.getType()))
-          continue;
-
-        addStringToStatement(statement, 1, recipient.getId().serialize());
-        addLongToStatement(statement, 2, item.getDate());
-        addLongToStatement(statement, 3, item.getDate());
-        addLongToStatement(statement, 4, item.getRead());
-        addLongToStatement(statement, 5, item.getStatus());
-        addTranslatedTypeToStatement(statement, 6, item.getType());
-        addStringToStatement(statement, 7, item.getBody());
-        addLongToStatement(statement, 8, threadId);
-        addLongToStatement(statement, 9, item.getRecipient());
-        modifiedThreads.add(threadId);
-        //statement.execute();
-        long rowId = statement.executeInsert();
-      }
+      boolean binary = BinaryBackup.hasMagic(in);
+      // A plain XML file is scanned from a memory mapping, only the zipfile needs the XML parser
+      boolean mapped = !inZipfile && !binary && MappedXmlBackup.canMap(source);
 
-      for (long threadId : modifiedThreads) {
-        threadTable.update(threadId, true);
-      }
+      PlaintextBackupReader backup;
+      if      (mapped) backup = new MappedXmlBackup(source);
+      else if (binary) backup = new BinaryBackup(in);
+      else             backup = new XmlBackup(in);
 
-      table.setTransactionSuccessful();
+      new PlaintextImportPipeline(context, backup, table, threadTable, checkpoint, chunkSize, progress).run(resumeAt);
     } catch (XmlPullParserException e) {
       Log.w(TAG, e);
       throw new IOException("XML Parsing error!");
     } finally {
-      table.endTransaction(transaction);
+      in.close();
     }
-    // Delete the plaintext file if zipfile is present
-    if (TextSecurePreferences.isPlainBackupInZipfile(context)) {
-      getPlaintextExportFile().delete(); // Insecure, leaves possibly recoverable plaintext on device
-      // FileUtilsJW.secureDelete(getPlaintextExportFile()); // much too slow
+    checkpoint.clear();
+  }
+
+  static void bindMessageInsert(SQLiteStatement statement, XmlBackup.XmlBackupItem item, ImportAddressResolver.Resolved resolved) {
+    statement.clearBindings();
+    addStringToStatement(statement, 1, resolved.getRecipientId().serialize());
+    addLongToStatement(statement, 2, item.getDate());
+    addLongToStatement(statement, 3, item.getDate());
+    addLongToStatement(statement, 4, item.getRead());
+    addLongToStatement(statement, 5, item.getStatus());
+    addTranslatedTypeToStatement(statement, 6, item.getType());
+    addStringToStatement(statement, 7, item.getBody());
+    addLongToStatement(statement, 8, resolved.getThreadId());
+    addLongToStatement(statement, 9, item.getRecipient());
+  }
+
+  // The backup in a zipfile is read straight from its entry, it is never extracted to storage.
+  // Zipfiles made with the parallel profile hold it gzipped.
+  private static InputStream openPlaintextBackup(Context context, File source, boolean inZipfile) throws IOException {
+    if (!inZipfile) {
+      return new FileInputStream(source);
+    }
+
+    ZipInputStream  zip = FileUtilsJW.openEncryptedZipInputStream(source, FileUtilsJW.getBackupPassword(context));
+    LocalFileHeader header;
+
+    while ((header = zip.getNextEntry()) != null) {
+      String name = header.getFileName();
+
+      if (name.endsWith(FILENAME) || name.endsWith(BINARY_FILENAME)) {
+        return zip;
+      } else if (name.endsWith(FILENAME + FileUtilsJW.GZIP_SUFFIX) || name.endsWith(BINARY_FILENAME + FileUtilsJW.GZIP_SUFFIX)) {
+        return new GZIPInputStream(zip, BUFFER_SIZE);
+      }
+    }
+    zip.close();
+    throw new IOException("No plaintext backup found in " + source.getAbsolutePath());
+  }
+
+  static void updateThreads(ThreadTable threadTable, Set<Long> modifiedThreads) {
+    for (long threadId : modifiedThreads) {
+      threadTable.update(threadId, true);
     }
+    modifiedThreads.clear();
   }
 
-  private static File getPlaintextExportFile() throws NoExternalStorageException {
-    return new File(StorageUtil.getBackupPlaintextDirectory(), "MollyPlaintextBackup.xml");
+  private static File getPlaintextExportFile(String filename) throws NoExternalStorageException {
+    return new File(StorageUtil.getBackupPlaintextDirectory(), filename);
+  }
+
+  // Of two backups the newer one is imported, without any the error names the file of the setting
+  private static File findPlaintextExportFile(boolean binary) throws NoExternalStorageException {
+    File preferred = getPlaintextExportFile(binary ? BINARY_FILENAME : FILENAME);
+    File other     = getPlaintextExportFile(binary ? FILENAME : BINARY_FILENAME);
+
+    if (!other.exists()) {
+      return preferred;
+    } else if (!preferred.exists()) {
+      return other;
+    } else {
+      return other.lastModified() > preferred.lastModified() ? other : preferred;
+    }
   }
 
   private static File getPlaintextExportZipFile() throws NoExternalStorageException {
@@ -121,7 +182,7 @@ public class PlaintextBackupImporter {
     statement.bindLong(index, value);
   }
 
-  private static boolean isAppropriateTypeForImport(long theirType) {
+  static boolean isAppropriateTypeForImport(long theirType) {
     long ourType = translateFromSystemBaseType(theirType);
 
     return ourType == MessageTypes.BASE_INBOX_TYPE ||
@@ -0,0 +1,23 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.Nullable;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+/**
+ * Source of the messages of a plaintext backup, in the order they were written.
+ */
+interface PlaintextBackupReader {
+
+  /**
+   * @return the message count announced by the backup, or -1 if it is not known (yet).
+   */
+  long getCount();
+
+  /**
+   * @return the next message, or null at the end of the backup.
+   */
+  @Nullable XmlBackup.XmlBackupItem getNext() throws IOException, XmlPullParserException;
+}
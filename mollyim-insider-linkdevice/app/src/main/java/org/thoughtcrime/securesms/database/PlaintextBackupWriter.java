@@ -0,0 +1,22 @@
+package org.thoughtcrime.securesms.database;
+
+import java.io.IOException;
+
+/**
+ * Destination of the messages of a plaintext backup.
+ */
+interface PlaintextBackupWriter {
+
+  void writeItem(XmlBackup.XmlBackupItem item) throws IOException;
+
+  /**
+   * Ends the backup once every message is written. Readers reject a backup that was closed
+   * without it as incomplete.
+   */
+  void finish() throws IOException;
+
+  /**
+   * Closes the stream the backup is written to, also when the backup is not finished.
+   */
+  void close() throws IOException;
+}
@@ -0,0 +1,174 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.signal.core.util.CursorUtil;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Three stage plaintext export.
+ *
+ * The calling thread reads the message table page by page, every page is converted to
+ * {@link XmlBackup.XmlBackupItem}s on a fork-join pool sized to the cores and a single writer
+ * thread appends the converted pages to the backup file. The stages are connected by a bounded
+ * queue of batches, each holding the future of its conversion. Pages are queued in _id order and
+ * the writer waits for every future in queue order, so the output order is the _id order of the
+ * table no matter in which order the conversions finish.
+ */
+final class PlaintextExportPipeline {
+
+  private static final String TAG = Log.tag(PlaintextExportPipeline.class);
+
+  private static final long POLL_INTERVAL_MS = 100;
+
+  private final Context               context;
+  private final MessageTable          messageTable;
+  private final PlaintextBackupWriter writer;
+  private final ExportRecipientCache  recipients;
+  private final int                   pageSize;
+  private final int                   parallelism;
+  private final ImportExportProgress  progress;
+
+  PlaintextExportPipeline(Context context, MessageTable messageTable, PlaintextBackupWriter writer, ExportRecipientCache recipients, int pageSize, ImportExportProgress progress) {
+    this.context      = context;
+    this.messageTable = messageTable;
+    this.writer       = writer;
+    this.recipients   = recipients;
+    this.pageSize     = pageSize;
+    this.parallelism  = Math.max(1, Runtime.getRuntime().availableProcessors());
+    this.progress     = progress;
+  }
+
+  void run() throws IOException {
+    ForkJoinPool         converters = new ForkJoinPool(parallelism);
+    ExecutorService      output     = Executors.newSingleThreadExecutor();
+    BlockingQueue<Batch> queue      = new ArrayBlockingQueue<>(parallelism * 2);
+
+    try {
+      Future<?> writerTask = output.submit(() -> {
+        writeBatches(queue);
+        return null;
+      });
+
+      readPages(converters, queue, writerTask);
+      put(queue, Batch.END, writerTask);
+      writerTask.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Plaintext export interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException("Plaintext export failed", e.getCause());
+    } finally {
+      converters.shutdownNow();
+      output.shutdownNow();
+    }
+  }
+
+  private void readPages(ForkJoinPool converters, BlockingQueue<Batch> queue, Future<?> writerTask) throws InterruptedException {
+    long lastId = 0;
+    int  rows;
+
+    do {
+      List<Row> records = new ArrayList<>(pageSize);
+      rows = 0;
+
+      try (Cursor cursor = messageTable.getMessagesAfter(lastId, pageSize)) {
+        MessageTable.MmsReader messagereader = MessageTable.mmsReaderFor(cursor);
+
+        while (cursor.moveToNext()) {
+          rows++;
+          lastId = CursorUtil.requireLong(cursor, MessageTable.ID);
+
+          try {
+            records.add(new Row(messagereader.getCurrent(),
+                                CursorUtil.requireLong(cursor, MessageTable.FROM_RECIPIENT_ID),
+                                CursorUtil.requireLong(cursor, MessageTable.TO_RECIPIENT_ID)));
+          } catch (Exception e) {
+            Log.w(TAG, "Skipping message " + lastId + ": " + e.getMessage());
+          }
+        }
+      }
+
+      if (!records.isEmpty()) {
+        put(queue, new Batch(converters.submit(() -> convert(records))), writerTask);
+      }
+    } while (rows == pageSize && !writerTask.isDone());
+  }
+
+  private List<XmlBackup.XmlBackupItem> convert(List<Row> rows) {
+    List<XmlBackup.XmlBackupItem> items = new ArrayList<>(rows.size());
+
+    for (Row row : rows) {
+      try {
+        items.add(PlaintextBackupExporter.toXmlBackupItem(context, recipients, row.record, row.fromRecipientId, row.toRecipientId));
+      } catch (Exception e) {
+        Log.w(TAG, "Skipping message " + row.record.getId() + ": " + e.getMessage());
+      }
+    }
+    return items;
+  }
+
+  // Progress is reported from the writer thread, it is the only one updating it
+  private void writeBatches(BlockingQueue<Batch> queue) throws IOException, InterruptedException, ExecutionException {
+    long written = 0;
+
+    while (true) {
+      Batch batch = queue.take();
+
+      if (batch == Batch.END) {
+        return;
+      }
+
+      for (XmlBackup.XmlBackupItem item : batch.items.get()) {
+        writer.writeItem(item);
+      }
+      written += batch.items.get().size();
+      progress.update(written);
+    }
+  }
+
+  // Waits for room in the queue, but gives up when the writer has already stopped.
+  private static void put(BlockingQueue<Batch> queue, Batch batch, Future<?> writerTask) throws InterruptedException {
+    while (!queue.offer(batch, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+      if (writerTask.isDone()) return;
+    }
+  }
+
+  // A message together with the recipient ids of its row, the cache of the export is keyed by them
+  private static final class Row {
+    private final MessageRecord record;
+    private final long          fromRecipientId;
+    private final long          toRecipientId;
+
+    private Row(MessageRecord record, long fromRecipientId, long toRecipientId) {
+      this.record          = record;
+      this.fromRecipientId = fromRecipientId;
+      this.toRecipientId   = toRecipientId;
+    }
+  }
+
+  private static final class Batch {
+    static final Batch END = new Batch(null);
+
+    private final Future<List<XmlBackup.XmlBackupItem>> items;
+
+    private Batch(Future<List<XmlBackup.XmlBackupItem>> items) {
+      this.items = items;
+    }
+  }
+}
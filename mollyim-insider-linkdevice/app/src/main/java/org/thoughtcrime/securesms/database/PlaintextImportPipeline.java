@@ -0,0 +1,222 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.signal.core.util.logging.Log;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two thread plaintext import.
+ *
+ * A parser thread reads the backup, skips what was already imported or can not be imported and
+ * cuts the rest into batches, collecting the distinct addresses of every batch. The calling thread
+ * is the only one writing: it resolves the addresses of a batch in one go, inserts its messages
+ * and commits at the end of the batch that brings the pending messages to chunkSize,
+ * checkpointing the position after it. Recipients and threads are created by the writer as
+ * well, inside its transaction, so no other thread ever waits for the database lock the
+ * writer holds.
+ */
+final class PlaintextImportPipeline {
+
+  private static final String TAG = Log.tag(PlaintextImportPipeline.class);
+
+  private static final int  BATCH_SIZE       = 500;
+  private static final int  QUEUE_CAPACITY   = 4;
+  private static final long POLL_INTERVAL_MS = 100;
+
+  private final Context               context;
+  private final PlaintextBackupReader reader;
+  private final MessageTable          messageTable;
+  private final ThreadTable           threadTable;
+  private final ImportCheckpoint      checkpoint;
+  private final int                   chunkSize;
+  private final ImportExportProgress  progress;
+
+  PlaintextImportPipeline(Context context, PlaintextBackupReader reader, MessageTable messageTable, ThreadTable threadTable,
+                          ImportCheckpoint checkpoint, int chunkSize, ImportExportProgress progress)
+  {
+    this.context      = context;
+    this.reader       = reader;
+    this.messageTable = messageTable;
+    this.threadTable  = threadTable;
+    this.checkpoint   = checkpoint;
+    this.chunkSize    = chunkSize;
+    this.progress     = progress;
+  }
+
+  /**
+   * @param resumeAt number of items at the start of the backup that were imported before.
+   */
+  void run(long resumeAt) throws IOException {
+    ExecutorService      input = Executors.newSingleThreadExecutor();
+    BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    try {
+      Future<?> parserTask = input.submit(() -> {
+        readBatches(queue, resumeAt);
+        return null;
+      });
+
+      insertBatches(queue, parserTask, resumeAt);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Plaintext import interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      if (e.getCause() instanceof XmlPullParserException) {
+        Log.w(TAG, e.getCause());
+        throw new IOException("XML Parsing error!");
+      }
+      throw new IOException("Plaintext import failed", e.getCause());
+    } finally {
+      input.shutdownNow();
+    }
+  }
+
+  private void readBatches(BlockingQueue<Batch> queue, long resumeAt) throws IOException, XmlPullParserException, InterruptedException {
+    Map<String, Integer>    indexes    = new HashMap<>();
+    Batch                   batch      = new Batch(BATCH_SIZE);
+    long                    position   = 0;
+    long                    batchStart = resumeAt;
+    XmlBackup.XmlBackupItem item;
+
+    while ((item = reader.getNext()) != null) {
+      if (position++ < resumeAt)
+        continue;
+
+      String address = item.getAddress();
+
+      if (address != null && !address.equals("null") && PlaintextBackupImporter.isAppropriateTypeForImport(item.getType())) {
+        Integer index = indexes.get(address);
+        if (index == null) {
+          index = batch.addresses.size();
+          indexes.put(address, index);
+          batch.addresses.add(address);
+        }
+        batch.addressIndexes[batch.items.size()] = index;
+        batch.items.add(item);
+      }
+
+      // Batches are cut by position, so progress moves on even when most items are skipped
+      if (position - batchStart == BATCH_SIZE) {
+        batch.endPosition = position;
+        batch.count       = reader.getCount();
+        queue.put(batch);
+
+        batch      = new Batch(BATCH_SIZE);
+        batchStart = position;
+        indexes.clear();
+      }
+    }
+
+    batch.endPosition = position;
+    batch.count       = reader.getCount();
+    queue.put(batch);
+    queue.put(Batch.END);
+  }
+
+  private void insertBatches(BlockingQueue<Batch> queue, Future<?> parserTask, long resumeAt) throws InterruptedException, ExecutionException {
+    ImportAddressResolver addresses       = new ImportAddressResolver(context, threadTable);
+    Set<Long>             modifiedThreads = new HashSet<>();
+    SQLiteDatabase        transaction     = messageTable.beginTransaction();
+    SQLiteStatement       statement       = PlaintextBackupImporter.createMessageInsertStatement(transaction);
+    boolean               first           = true;
+    int                   uncommitted     = 0;
+
+    progress.setPhase(ImportExportProgress.Phase.IMPORTING, -1);
+    progress.setProcessed(resumeAt);
+
+    try {
+      Batch batch;
+
+      while ((batch = take(queue, parserTask)) != Batch.END) {
+        if (first) {
+          progress.setTotal(batch.count);
+          first = false;
+        }
+
+        ImportAddressResolver.Resolved[] resolved = new ImportAddressResolver.Resolved[batch.addresses.size()];
+        for (int i = 0; i < resolved.length; i++) {
+          resolved[i] = addresses.resolve(batch.addresses.get(i));
+        }
+
+        for (int i = 0; i < batch.items.size(); i++) {
+          ImportAddressResolver.Resolved recipient = resolved[batch.addressIndexes[i]];
+
+          PlaintextBackupImporter.bindMessageInsert(statement, batch.items.get(i), recipient);
+          modifiedThreads.add(recipient.getThreadId());
+          statement.executeInsert();
+        }
+
+        uncommitted += batch.items.size();
+        progress.update(batch.endPosition);
+
+        if (uncommitted >= chunkSize) {
+          PlaintextBackupImporter.updateThreads(threadTable, modifiedThreads);
+          messageTable.setTransactionSuccessful();
+          messageTable.endTransaction(transaction);
+          checkpoint.set(batch.endPosition);
+
+          transaction = messageTable.beginTransaction();
+          uncommitted = 0;
+        }
+      }
+
+      progress.setPhase(ImportExportProgress.Phase.FINISHING, -1);
+      PlaintextBackupImporter.updateThreads(threadTable, modifiedThreads);
+      messageTable.setTransactionSuccessful();
+    } finally {
+      statement.close();
+      messageTable.endTransaction(transaction);
+    }
+  }
+
+  // Waits for the next batch, but rethrows the failure of the parser once it stopped without one.
+  private static Batch take(BlockingQueue<Batch> queue, Future<?> parserTask) throws InterruptedException, ExecutionException {
+    while (true) {
+      Batch batch = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      if (batch != null) return batch;
+
+      if (parserTask.isDone()) {
+        parserTask.get();
+
+        batch = queue.poll();
+        if (batch != null) return batch;
+        throw new IllegalStateException("Parser stopped before the end of the backup");
+      }
+    }
+  }
+
+  private static final class Batch {
+    static final Batch END = new Batch(0);
+
+    private final List<XmlBackup.XmlBackupItem> items;
+    private final List<String>                  addresses = new ArrayList<>();
+    private final int[]                         addressIndexes;
+
+    private long endPosition;
+    private long count;
+
+    private Batch(int capacity) {
+      this.items          = new ArrayList<>(capacity);
+      this.addressIndexes = new int[capacity];
+    }
+  }
+}
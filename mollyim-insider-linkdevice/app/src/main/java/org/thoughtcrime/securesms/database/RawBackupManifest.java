@@ -0,0 +1,257 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * State of the data directory at the previous raw backup, used to only export what changed since.
+ *
+ * Every file is recorded with its size, modification time and a CRC32 of its contents. A file
+ * with the same size and modification time is taken as unchanged without reading it. When only
+ * the modification time differs the contents are hashed and compared, so files that are rewritten
+ * with the same contents are not exported again. New and resized files are exported anyway, their
+ * hash is only computed once it is needed for such a comparison.
+ *
+ * The manifest also records the base backup it belongs to and how many deltas were written on top
+ * of it, so a replaced or incomplete backup is noticed and a full export is made instead.
+ */
+final class RawBackupManifest {
+
+  private static final String TAG = Log.tag(RawBackupManifest.class);
+
+  private static final String HEADER      = "MollyRawBackupManifest 1";
+  private static final String DELTAS      = "deltas";
+  private static final String BASE        = "base";
+  private static final char   SEPARATOR   = '\t';
+  private static final int    BUFFER_SIZE = 64 * 1024;
+
+  static final long UNKNOWN_CRC = -1;
+
+  private final Map<String, Entry> entries;
+
+  private int  deltaCount;
+  private long baseLength;
+  private long baseLastModified;
+
+  private RawBackupManifest(Map<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  static @NonNull RawBackupManifest empty() {
+    return new RawBackupManifest(Collections.emptyMap());
+  }
+
+  /**
+   * @return the manifest stored in the file, or null if there is none or it can not be read.
+   */
+  static @Nullable RawBackupManifest load(@NonNull File file) {
+    if (!file.exists()) return null;
+
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      if (!HEADER.equals(reader.readLine())) {
+        Log.w(TAG, "Unknown manifest format in " + file.getName());
+        return null;
+      }
+
+      String[] deltas = reader.readLine().split(String.valueOf(SEPARATOR));
+      String[] base   = reader.readLine().split(String.valueOf(SEPARATOR));
+      if (!DELTAS.equals(deltas[0]) || !BASE.equals(base[0])) {
+        Log.w(TAG, "Invalid manifest header in " + file.getName());
+        return null;
+      }
+
+      Map<String, Entry> entries = new HashMap<>();
+      String             line;
+
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(String.valueOf(SEPARATOR), 4);
+        entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+      }
+
+      RawBackupManifest manifest = new RawBackupManifest(entries);
+      manifest.deltaCount       = Integer.parseInt(deltas[1]);
+      manifest.baseLength       = Long.parseLong(base[1]);
+      manifest.baseLastModified = Long.parseLong(base[2]);
+      return manifest;
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Could not read manifest " + file.getName() + ": " + e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Writes the manifest next to the file first and then moves it in place, so an interrupted save
+   * leaves the previous manifest intact.
+   */
+  void save(@NonNull File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      writer.write(HEADER + '\n');
+      writer.write(DELTAS + SEPARATOR + deltaCount + '\n');
+      writer.write(BASE + SEPARATOR + baseLength + SEPARATOR + baseLastModified + '\n');
+
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        Entry value = entry.getValue();
+        writer.write(String.valueOf(value.size) + SEPARATOR + value.lastModified + SEPARATOR + value.crc + SEPARATOR + entry.getKey() + '\n');
+      }
+      writer.flush();
+      out.getFD().sync();
+    }
+
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Could not replace manifest " + file.getAbsolutePath());
+    }
+  }
+
+  int getDeltaCount() {
+    return deltaCount;
+  }
+
+  void setDeltaCount(int deltaCount) {
+    this.deltaCount = deltaCount;
+  }
+
+  void setBase(@NonNull File base) {
+    this.baseLength       = base.length();
+    this.baseLastModified = base.lastModified();
+  }
+
+  boolean isBase(@NonNull File base) {
+    return base.exists() && base.length() == baseLength && base.lastModified() == baseLastModified;
+  }
+
+  /**
+   * Compares the files below root with this manifest.
+   *
+   * @param files paths of the files below root as returned by the export listing.
+   */
+  @NonNull Diff diff(@NonNull File root, @NonNull List<String> files, @NonNull ImportExportProgress progress) {
+    Map<String, Entry> current = new HashMap<>(files.size() * 2);
+    List<String>       changed = new ArrayList<>();
+    List<String>       deleted = new ArrayList<>();
+
+    progress.setPhase(ImportExportProgress.Phase.PREPARING, files.size());
+
+    for (int i = 0; i < files.size(); i++) {
+      String path         = files.get(i);
+      File   file         = new File(root, path);
+      long   size         = file.length();
+      long   lastModified = file.lastModified();
+      Entry  previous     = entries.get(path);
+
+      if (previous == null || previous.size != size) {
+        current.put(path, new Entry(size, lastModified, UNKNOWN_CRC));
+        changed.add(path);
+      } else if (previous.lastModified == lastModified) {
+        current.put(path, previous);
+      } else {
+        long crc = crc32(file);
+        current.put(path, new Entry(size, lastModified, crc));
+        if (crc == UNKNOWN_CRC || crc != previous.crc) {
+          changed.add(path);
+        }
+      }
+      progress.update(i + 1);
+    }
+
+    for (String path : entries.keySet()) {
+      if (!current.containsKey(path)) {
+        deleted.add(path);
+      }
+    }
+    progress.finish();
+
+    RawBackupManifest next = new RawBackupManifest(current);
+    next.deltaCount       = deltaCount;
+    next.baseLength       = baseLength;
+    next.baseLastModified = baseLastModified;
+
+    Log.i(TAG, files.size() + " files, " + changed.size() + " changed, " + deleted.size() + " deleted");
+    return new Diff(changed, deleted, next);
+  }
+
+  // Returns UNKNOWN_CRC when the file can not be read, it is then exported as changed
+  private static long crc32(File file) {
+    CRC32  crc    = new CRC32();
+    byte[] buffer = new byte[BUFFER_SIZE];
+
+    try (InputStream in = new FileInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+      }
+      return crc.getValue();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not hash " + file.getAbsolutePath() + ": " + e.toString());
+      return UNKNOWN_CRC;
+    }
+  }
+
+  private static final class Entry {
+    private final long size;
+    private final long lastModified;
+    private final long crc;
+
+    private Entry(long size, long lastModified, long crc) {
+      this.size         = size;
+      this.lastModified = lastModified;
+      this.crc          = crc;
+    }
+  }
+
+  static final class Diff {
+    private final List<String>      changed;
+    private final List<String>      deleted;
+    private final RawBackupManifest next;
+
+    private Diff(List<String> changed, List<String> deleted, RawBackupManifest next) {
+      this.changed = changed;
+      this.deleted = deleted;
+      this.next    = next;
+    }
+
+    /**
+     * @return the new and modified files, relative to the root.
+     */
+    @NonNull List<String> getChanged() {
+      return changed;
+    }
+
+    /**
+     * @return the files of the manifest that no longer exist, relative to the root.
+     */
+    @NonNull List<String> getDeleted() {
+      return deleted;
+    }
+
+    /**
+     * @return the manifest describing the current state, to be saved once the export succeeded.
+     */
+    @NonNull RawBackupManifest getNext() {
+      return next;
+    }
+  }
+}
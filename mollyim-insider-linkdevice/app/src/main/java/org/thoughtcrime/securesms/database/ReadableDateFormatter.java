@@ -0,0 +1,48 @@
+package org.thoughtcrime.securesms.database;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Formats the readable_date attribute of plaintext backups.
+ *
+ * Unlike the SimpleDateFormat it replaces this is thread safe. Messages tend to come in bursts
+ * within the same second, so recently formatted seconds are memoized in a small lock-free cache.
+ */
+final class ReadableDateFormatter {
+
+  private static final DateTimeFormatter FORMATTER  = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.getDefault())
+                                                                       .withZone(ZoneId.systemDefault());
+  private static final int               CACHE_SIZE = 64;
+
+  private static final AtomicReferenceArray<Entry> cache = new AtomicReferenceArray<>(CACHE_SIZE);
+
+  private ReadableDateFormatter() {}
+
+  static String format(long timestamp) {
+    long  second = Math.floorDiv(timestamp, 1000L);
+    int   slot   = (int) (second & (CACHE_SIZE - 1));
+    Entry entry  = cache.get(slot);
+
+    if (entry != null && entry.second == second) {
+      return entry.text;
+    }
+
+    String text = FORMATTER.format(Instant.ofEpochSecond(second));
+    cache.set(slot, new Entry(second, text));
+    return text;
+  }
+
+  private static final class Entry {
+    private final long   second;
+    private final String text;
+
+    private Entry(long second, String text) {
+      this.second = second;
+      this.text   = text;
+    }
+  }
+}
@@ -1,8 +1,6 @@
 package org.thoughtcrime.securesms.database;
 
-import android.annotation.SuppressLint;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Environment;
 
@@ -11,12 +9,14 @@ import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.UriAttachment;
 import org.thoughtcrime.securesms.util.MediaUtil;
 
+import java.io.Closeable;
 import java.io.File;
-import java.text.SimpleDateFormat;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
-public class WhatsappBackup {
+public class WhatsappBackup implements Iterator<WhatsappBackup.WhatsappBackupItem>, Closeable {
 
     public static final String TAG = WhatsappBackup.class.getSimpleName();
 
@@ -37,128 +37,172 @@ public class WhatsappBackup {
     private static final String TRANSPORT      = "transport";
     private static final String GROUP_NAME     = "group_name";
 
-    private static final SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
-
     private final android.database.sqlite.SQLiteDatabase whatsappDb;
-    private long dbOffset = 0l;
+    private final WhatsappJidDictionary jids;
+    private final Cursor cursor;
+
+    // Column indices are looked up once for the whole cursor
+    private final int idColumn;
+    private final int dataColumn;
+    private final int keyRemoteJidColumn;
+    private final int remoteResourceColumn;
+    private final int timestampColumn;
+    private final int keyFromMeColumn;
+    private final int mediaWaTypeColumn;
+    private final int mediaCaptionColumn;
+    private final int mediaFilePathColumn;
+    private final int mediaFileSizeColumn;
+    private final int mediaMimeTypeColumn;
+
+    private WhatsappBackupItem next;
 
     public WhatsappBackup(android.database.sqlite.SQLiteDatabase whatsappDb)  {
+        this(whatsappDb, 0);
+    }
+
+    /**
+     * Reads the messages forward only, in _id order, over one open cursor. The media row of every
+     * message is joined in, so attachments can be resolved without a query per message.
+     *
+     * @param afterId only messages with a larger _id are returned.
+     */
+    public WhatsappBackup(android.database.sqlite.SQLiteDatabase whatsappDb, long afterId)  {
         this.whatsappDb = whatsappDb;
+        this.jids       = WhatsappJidDictionary.load(whatsappDb);
+        this.cursor     = whatsappDb.rawQuery(buildMessageQuery(whatsappDb), new String[] { String.valueOf(afterId) });
+
+        idColumn             = cursor.getColumnIndexOrThrow("_id");
+        dataColumn           = cursor.getColumnIndexOrThrow("data");
+        keyRemoteJidColumn   = cursor.getColumnIndexOrThrow("key_remote_jid");
+        remoteResourceColumn = cursor.getColumnIndexOrThrow("remote_resource");
+        timestampColumn      = cursor.getColumnIndexOrThrow("timestamp");
+        keyFromMeColumn      = cursor.getColumnIndexOrThrow("key_from_me");
+        mediaWaTypeColumn    = cursor.getColumnIndexOrThrow("media_wa_type");
+        mediaCaptionColumn   = cursor.getColumnIndexOrThrow("media_caption");
+        mediaFilePathColumn  = cursor.getColumnIndexOrThrow("media_file_path");
+        mediaFileSizeColumn  = cursor.getColumnIndexOrThrow("media_file_size");
+        mediaMimeTypeColumn  = cursor.getColumnIndexOrThrow("media_mime_type");
     }
 
-    @SuppressLint("Range")
-    public static List<Attachment> getMediaAttachments(SQLiteDatabase whatsappDb, WhatsappBackupItem item) {
+    // Older msgstore databases have no message_media table, their media columns stay empty
+    private static String buildMessageQuery(android.database.sqlite.SQLiteDatabase whatsappDb) {
+        boolean hasMedia;
+        try (Cursor c = whatsappDb.rawQuery("SELECT 1 FROM sqlite_master WHERE type='table' AND name='message_media'", null)) {
+            hasMedia = c.moveToFirst();
+        }
+
+        if (!hasMedia) {
+            return "SELECT messages.*, NULL AS media_file_path, NULL AS media_file_size, NULL AS media_mime_type FROM messages WHERE messages._id > ? ORDER BY messages._id";
+        }
+
+        return "SELECT messages.*, media.file_path AS media_file_path, media.file_size AS media_file_size, media.mime_type AS media_mime_type " +
+               "FROM messages LEFT JOIN (SELECT message_row_id, file_path, file_size, mime_type FROM message_media GROUP BY message_row_id) AS media " +
+               "ON media.message_row_id = messages._id " +
+               "WHERE messages._id > ? ORDER BY messages._id";
+    }
+
+    /**
+     * Builds the attachment of a media message from its joined message_media row. Only touches
+     * the file system, so it can be called from any thread.
+     */
+    public static List<Attachment> getMediaAttachments(WhatsappBackupItem item) {
         List<Attachment> attachments = new LinkedList<>();
+        if (item.getMediaFilePath() == null || item.getMediaMimeType() == null) return attachments;
+
         try {
-            Cursor c = whatsappDb.rawQuery("SELECT * FROM message_media WHERE message_row_id=" + item.getWaMessageId() +" LIMIT 1", null);
-            if (c != null) {
-                if (c.moveToFirst()) {
-                    do {
-                        File storagePath = Environment.getExternalStorageDirectory();
-                        String                     filePath = storagePath.getAbsolutePath() + File.separator + "Android/media/com.whatsapp/WhatsApp" + File.separator + c.getString(c.getColumnIndex("file_path"));
-                        int size     = c.getInt(c.getColumnIndex("file_size"));
-                        String                     type     = c.getString(c.getColumnIndex("mime_type"));
-                        File file = new File(filePath);
-                        if (!file.exists()) return attachments;
-                        Uri uri = Uri.fromFile(file);
-                        String name = filePath;
-                        if (type.equals("image/jpeg")) {
-                            Attachment attachment = new UriAttachment(uri, MediaUtil.IMAGE_JPEG, AttachmentTable.TRANSFER_PROGRESS_DONE,
-                                    size, name, false, false, false, false, item.getMediaCaption(), null, null, null, null);
-                            attachments.add(attachment);
-                        } else if (type.equals("video/mp4")) {
-                            Attachment attachment = new UriAttachment(uri, MediaUtil.VIDEO_MP4, AttachmentTable.TRANSFER_PROGRESS_DONE,
-                                    size, name, false, false, false, false, item.getMediaCaption(), null, null, null, null);
-                            attachments.add(attachment);
-                        } else if (type.equals("audio/ogg; codecs=opus")) {
-                        Attachment attachment = new UriAttachment(uri, MediaUtil.AUDIO_UNSPECIFIED, AttachmentTable.TRANSFER_PROGRESS_DONE,
-                                size, name, true, false, false, false, null, null, null, null, null);
-                        attachments.add(attachment);
-                        } else {
-                            return attachments; // Ignore everything that is not an image or a video for the moment
-                        }
-                        return attachments;
-                    }
-                    while (c.moveToNext());
-                }
-                c.close();
+            File storagePath = Environment.getExternalStorageDirectory();
+            String filePath = storagePath.getAbsolutePath() + File.separator + "Android/media/com.whatsapp/WhatsApp" + File.separator + item.getMediaFilePath();
+            int    size     = item.getMediaFileSize();
+            String type     = item.getMediaMimeType();
+            File   file     = new File(filePath);
+            if (!file.exists()) return attachments;
+            Uri uri = Uri.fromFile(file);
+            String name = filePath;
+            if (type.equals("image/jpeg")) {
+                Attachment attachment = new UriAttachment(uri, MediaUtil.IMAGE_JPEG, AttachmentTable.TRANSFER_PROGRESS_DONE,
+                        size, name, false, false, false, false, item.getMediaCaption(), null, null, null, null);
+                attachments.add(attachment);
+            } else if (type.equals("video/mp4")) {
+                Attachment attachment = new UriAttachment(uri, MediaUtil.VIDEO_MP4, AttachmentTable.TRANSFER_PROGRESS_DONE,
+                        size, name, false, false, false, false, item.getMediaCaption(), null, null, null, null);
+                attachments.add(attachment);
+            } else if (type.equals("audio/ogg; codecs=opus")) {
+                Attachment attachment = new UriAttachment(uri, MediaUtil.AUDIO_UNSPECIFIED, AttachmentTable.TRANSFER_PROGRESS_DONE,
+                        size, name, true, false, false, false, null, null, null, null, null);
+                attachments.add(attachment);
             }
-        }catch(Exception e2){
+            // Ignore everything that is not an image, a video or a voice note for the moment
+        } catch (Exception e2) {
             Log.w(TAG, e2.getMessage());
         }
         return attachments;
     }
 
-    @SuppressLint("Range")
+    /**
+     * @return the next message, or null when all messages have been read.
+     */
     public WhatsappBackup.WhatsappBackupItem getNext() {
-        WhatsappBackup.WhatsappBackupItem item = null;
-        try {
-            Cursor c = whatsappDb.rawQuery("SELECT * FROM messages LIMIT "+ dbOffset + ", 1", null);
-            if (c != null) {
-                if (c.moveToFirst()) {
-                    do {
-                        item = new WhatsappBackup.WhatsappBackupItem();
-                        item.subject       = null;
-                        item.body          = c.getString(c.getColumnIndex("data"));
-                        item.protocol      = 0;
-                        String rawAddress = c.getString(c.getColumnIndex("key_remote_jid"));
-                        if (rawAddress != null && rawAddress.trim().length() > 0) {
-                            item.address = "+" + rawAddress.split("@")[0]; // Only keep the phone number
-                        }
-                        if (item.address.contains("-")) { // Check if it's a group message
-                            item.groupName = getGroupName(c.getString(c.getColumnIndex("key_remote_jid")));
-                            rawAddress = c.getString(c.getColumnIndex("remote_resource"));
-                            if (rawAddress != null && rawAddress.trim().length() > 0) {
-                                item.address = "+" + c.getString(c.getColumnIndex("remote_resource")).split("@")[0];
-                            } else {
-                                item.address = null;
-                            }
-                        }
-                        item.contactName   = null;
-                        item.date          = c.getLong(c.getColumnIndex("timestamp"));
-                        item.readableDate  = dateFormatter.format(item.date);
-                        int fromMe = c.getInt(c.getColumnIndex("key_from_me"));
-                        item.type          = (int)(fromMe == 1 ? 2 : 1);
-                        item.serviceCenter = null;
-                        item.read          = 1;
-                        item.status        = MessageTable.Status.STATUS_COMPLETE;
-                        item.transport     = "Data";
-                        item.mediaWaType   = c.getInt(c.getColumnIndex("media_wa_type"));
-                        item.waMessageId   = c.getLong(c.getColumnIndex("_id"));
-                        item.mediaCaption  = c.getString(c.getColumnIndex("media_caption"));
-                    }
-                    while (c.moveToNext());
-                }
-                c.close();
+        return hasNext() ? next() : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && cursor.moveToNext()) {
+            try {
+                next = readItem();
+            } catch (Exception e) {
+                Log.w(TAG, "Skipping message " + cursor.getLong(idColumn) + ": " + e.getMessage());
             }
-        }catch(Exception e2){
-            Log.w(TAG, e2.getMessage());
         }
+        return next != null;
+    }
 
-        dbOffset++;
-        //if (dbOffset == 3000) return null; // Limit number of imported messages for quick testing
+    @Override
+    public WhatsappBackup.WhatsappBackupItem next() {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        WhatsappBackup.WhatsappBackupItem item = next;
+        next = null;
         return item;
     }
 
-    @SuppressLint("Range")
-    private String getGroupName(String keyRemoteJid) {
-        try {
+    @Override
+    public void close() {
+        cursor.close();
+    }
 
-            Cursor c = whatsappDb.rawQuery("SELECT subject FROM chat JOIN jid ON chat.jid_row_id=jid._id WHERE jid.raw_string='" + keyRemoteJid + "' LIMIT 1", null);
-            if (c != null) {
-                if (c.moveToFirst()) {
-                    do {
-                        String groupName        = c.getString(c.getColumnIndex("subject"));
-                        return groupName;
-                    }
-                    while (c.moveToNext());
-                }
-                c.close();
-            }
-        }catch(Exception e2) {
-            Log.w(TAG, e2.getMessage());
+    // Returns null for rows without a chat, these are WhatsApp system entries
+    private WhatsappBackup.WhatsappBackupItem readItem() {
+        String rawAddress = cursor.getString(keyRemoteJidColumn);
+        String address    = jids.getAddress(rawAddress);
+        if (address == null) {
+            return null;
+        }
+
+        WhatsappBackup.WhatsappBackupItem item = new WhatsappBackup.WhatsappBackupItem();
+        item.subject       = null;
+        item.body          = cursor.getString(dataColumn);
+        item.protocol      = 0;
+        item.address       = address;
+        if (item.address.contains("-")) { // Check if it's a group message
+            item.groupName = jids.getSubject(rawAddress);
+            item.address   = jids.getAddress(cursor.getString(remoteResourceColumn));
         }
-        return null;
+        item.contactName   = null;
+        item.date          = cursor.getLong(timestampColumn);
+        int fromMe = cursor.getInt(keyFromMeColumn);
+        item.type          = (int)(fromMe == 1 ? 2 : 1);
+        item.serviceCenter = null;
+        item.read          = 1;
+        item.status        = MessageTable.Status.STATUS_COMPLETE;
+        item.transport     = "Data";
+        item.mediaWaType   = cursor.getInt(mediaWaTypeColumn);
+        item.waMessageId   = cursor.getLong(idColumn);
+        item.mediaCaption  = cursor.getString(mediaCaptionColumn);
+        item.mediaFilePath = cursor.getString(mediaFilePathColumn);
+        item.mediaFileSize = cursor.getInt(mediaFileSizeColumn);
+        item.mediaMimeType = cursor.getString(mediaMimeTypeColumn);
+        return item;
     }
 
     public static class WhatsappBackupItem {
@@ -178,6 +222,9 @@ public class WhatsappBackup {
         private int mediaWaType; //
         private long waMessageId;
         private String mediaCaption;
+        private String mediaFilePath;
+        private int    mediaFileSize;
+        private String mediaMimeType;
 
         public WhatsappBackupItem() {}
 
@@ -189,7 +236,6 @@ public class WhatsappBackup {
             this.address       = address;
             this.contactName   = contactName;
             this.date          = date;
-            this.readableDate  = dateFormatter.format(date);
             this.type          = type;
             this.subject       = subject;
             this.body          = body;
@@ -219,6 +265,9 @@ public class WhatsappBackup {
         }
 
         public String getReadableDate() {
+            if (readableDate == null) {
+                readableDate = ReadableDateFormatter.format(date);
+            }
             return readableDate;
         }
 
@@ -263,5 +312,17 @@ public class WhatsappBackup {
         public String getMediaCaption() {
             return mediaCaption;
         }
+
+        public String getMediaFilePath() {
+            return mediaFilePath;
+        }
+
+        public int getMediaFileSize() {
+            return mediaFileSize;
+        }
+
+        public String getMediaMimeType() {
+            return mediaMimeType;
+        }
     }
 }
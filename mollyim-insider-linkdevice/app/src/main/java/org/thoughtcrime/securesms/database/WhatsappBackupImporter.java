@@ -1,10 +1,11 @@
 package org.thoughtcrime.securesms.database;
 
-import android.app.ProgressDialog;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 
+import androidx.annotation.VisibleForTesting;
+
 //import com.google.android.mms.pdu_alt.PduHeaders;
 
 import net.zetetic.database.sqlcipher.SQLiteStatement;
@@ -17,6 +18,7 @@ import org.thoughtcrime.securesms.database.whatsapp.WaDbOpenHelper;
 import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 import java.io.IOException;
 import java.util.HashSet;
@@ -36,6 +38,7 @@ import static org.thoughtcrime.securesms.database.MessageTable.DATE_SERVER;
 import static org.thoughtcrime.securesms.database.MessageTable.EXPIRES_IN;
 import static org.thoughtcrime.securesms.database.MessageTable.READ;
 import static org.thoughtcrime.securesms.database.MessageTable.FROM_RECIPIENT_ID;
+import static org.thoughtcrime.securesms.database.MessageTable.TO_RECIPIENT_ID;
 import static org.thoughtcrime.securesms.database.MessageTable.SMS_SUBSCRIPTION_ID;
 import static org.thoughtcrime.securesms.database.MessageTable.THREAD_ID;
 import static org.thoughtcrime.securesms.database.MessageTable.BASE_INBOX_TYPE;
@@ -48,6 +51,9 @@ public class WhatsappBackupImporter {
 
     private static final String TAG = org.thoughtcrime.securesms.database.PlaintextBackupImporter.class.getSimpleName();
 
+    // Number of WhatsApp messages processed per committed transaction
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
     private static android.database.sqlite.SQLiteDatabase openWhatsappDb(Context context) throws NoExternalStorageException {
         try {
             android.database.sqlite.SQLiteOpenHelper db = new WaDbOpenHelper(context);
@@ -58,28 +64,73 @@ public class WhatsappBackupImporter {
         }
     }
 
-    public static void importWhatsappFromSd(Context context, ProgressDialog progressDialog, boolean importGroups, boolean avoidDuplicates, boolean importMedia)
+    public static void importWhatsappFromSd(Context context, ImportExportProgress progress, boolean importGroups, boolean avoidDuplicates, boolean importMedia)
+            throws NoExternalStorageException, IOException
+    {
+        importWhatsappFromSd(context, progress, importGroups, avoidDuplicates, importMedia, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Imports the WhatsApp messages in chunks of chunkSize messages, every chunk is committed on its
+     * own and followed by a checkpoint with the last WhatsApp _id. An import that was interrupted
+     * continues after that _id the next time it is started on the same msgstore.db.
+     */
+    public static void importWhatsappFromSd(Context context, ImportExportProgress progress, boolean importGroups, boolean avoidDuplicates, boolean importMedia, int chunkSize)
             throws NoExternalStorageException, IOException
     {
         Log.w(TAG, "importWhatsapp(): importGroup: " + importGroups + ", avoidDuplicates: " + avoidDuplicates);
         android.database.sqlite.SQLiteDatabase whatsappDb = openWhatsappDb(context);
+        ImportCheckpoint checkpoint = ImportCheckpoint.forFile(context, TextSecurePreferences.WHATSAPP_IMPORT_CHECKPOINT, WaDbOpenHelper.getDatabaseFile(context));
+        importWhatsapp(context, whatsappDb, checkpoint, progress, importGroups, avoidDuplicates, importMedia, chunkSize);
+    }
+
+    /**
+     * Imports from an opened msgstore.db, which is closed afterwards.
+     */
+    @VisibleForTesting
+    static void importWhatsapp(Context context, android.database.sqlite.SQLiteDatabase whatsappDb, ImportCheckpoint checkpoint, ImportExportProgress progress,
+                               boolean importGroups, boolean avoidDuplicates, boolean importMedia, int chunkSize)
+            throws IOException
+    {
+        long resumeAfter                 = checkpoint.get();
         MessageTable messageDb           = SignalDatabase.messages();
         //MmsTable mmsDb                   = SignalDatabase.mms();
         AttachmentTable attachmentDb     = SignalDatabase.attachments();
         SQLiteDatabase smsDbTransaction = messageDb.beginTransaction();
         int numMessages = getNumMessages(whatsappDb, importMedia);
-        progressDialog.setMax(numMessages);
+        progress.setPhase(ImportExportProgress.Phase.IMPORTING, numMessages);
+        if (resumeAfter > 0) Log.i(TAG, "Resuming import after WhatsApp message " + resumeAfter);
+        WhatsappBackup        backup = null;
+        WhatsappMediaImporter media  = null;
         try {
             ThreadTable threads            = SignalDatabase.threads();
             GroupTable groups              = SignalDatabase.groups();
-            WhatsappBackup backup          = new WhatsappBackup(whatsappDb);
+            backup                         = new WhatsappBackup(whatsappDb, resumeAfter);
             Set<Long>      modifiedThreads = new HashSet<>();
+            ImportDedupeIndex dedupeIndex  = avoidDuplicates ? new ImportDedupeIndex(messageDb) : null;
+            media                          = new WhatsappMediaImporter(messageDb, attachmentDb, smsDbTransaction, dedupeIndex, modifiedThreads);
             WhatsappBackup.WhatsappBackupItem item;
 
-            int msgCount = 0;
+            int  msgCount = resumeAfter > 0 ? getNumMessagesUpTo(whatsappDb, resumeAfter) : 0;
+            progress.setProcessed(msgCount);
+            int  inChunk  = 0;
+            long lastId   = resumeAfter;
             while ((item = backup.getNext()) != null) {
+                // Everything up to the previous message is processed, so that is where a chunk ends
+                if (++inChunk > chunkSize) {
+                    media.flush();
+                    updateThreads(threads, modifiedThreads);
+                    messageDb.setTransactionSuccessful();
+                    messageDb.endTransaction(smsDbTransaction);
+                    checkpoint.set(lastId);
+
+                    smsDbTransaction = messageDb.beginTransaction();
+                    inChunk          = 1;
+                }
+                lastId = item.getWaMessageId();
+
                 msgCount++;
-                progressDialog.setProgress(msgCount);
+                progress.update(msgCount);
                 Recipient recipient = getRecipient(context, item);
                 if (isGroupMessage(item) && !importGroups) continue;
                 long threadId = getThreadId(item, groups, threads, recipient);
@@ -88,48 +139,44 @@ public class WhatsappBackupImporter {
 
                 if (isMms(item)) {
                     if (!importMedia) continue;
-                    if (avoidDuplicates && wasMsgAlreadyImported(smsDbTransaction, MessageTable.TABLE_NAME, MessageTable.DATE_SENT, threadId, recipient, item)) continue;
-                    List<Attachment> attachments = WhatsappBackup.getMediaAttachments(whatsappDb, item);
-                    if (attachments != null && attachments.size() > 0) insertMms(messageDb, attachmentDb, item, recipient, threadId, attachments);
+                    if (avoidDuplicates && wasMsgAlreadyImported(dedupeIndex, threadId, recipient, item)) continue;
+                    media.add(item, recipient, threadId); // Indexed and counted when its batch is inserted
                 } else {
                     if (item.getBody() == null) continue; //Ignore empty msgs for e.g. change of security numbers
-                    if (avoidDuplicates && wasMsgAlreadyImported(smsDbTransaction, MessageTable.TABLE_NAME, MessageTable.DATE_SENT, threadId, recipient, item)) continue;
+                    if (avoidDuplicates && wasMsgAlreadyImported(dedupeIndex, threadId, recipient, item)) continue;
                     insertSms(messageDb, smsDbTransaction, item, recipient, threadId);
+                    if (avoidDuplicates) dedupeIndex.add(threadId, item.getDate(), recipient.getId().toLong());
+                    modifiedThreads.add(threadId);
                 }
-                modifiedThreads.add(threadId);
             }
 
-            for (long threadId : modifiedThreads) {
-                threads.update(threadId, true);
-            }
+            media.flush();
+            progress.setPhase(ImportExportProgress.Phase.FINISHING, -1);
+            updateThreads(threads, modifiedThreads);
 
-            whatsappDb.setTransactionSuccessful();
+            messageDb.setTransactionSuccessful();
             Log.w(TAG, "Exited loop");
         } catch (Exception e) {
             Log.w(TAG, e);
             throw new IOException("Whatsapp Import error!");
         } finally {
+            if (media != null) media.close();
+            if (backup != null) backup.close();
             whatsappDb.close();
             messageDb.endTransaction(smsDbTransaction);
         }
-
+        checkpoint.clear();
     }
 
-    private static boolean wasMsgAlreadyImported(SQLiteDatabase db, String tableName, String dateField, long threadId, Recipient recipient, WhatsappBackup.WhatsappBackupItem item) {
-        String[] cols  = new String[] {"COUNT(*)"};
-        String   query = THREAD_ID + " = ? AND " + dateField + " = ? AND " + FROM_RECIPIENT_ID + " = ?";
-        String[] args  = new String[]{String.valueOf(threadId), String.valueOf(item.getDate()), String.valueOf(recipient.getId().serialize())};
-
-        try (Cursor cursor = db.query(tableName, cols, query, args, null, null, null)) {
-            if (cursor != null) {
-                if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
-                    cursor.close();
-                    return true;
-                }
-                cursor.close();
-            }
+    private static void updateThreads(ThreadTable threads, Set<Long> modifiedThreads) {
+        for (long threadId : modifiedThreads) {
+            threads.update(threadId, true);
         }
-        return false;
+        modifiedThreads.clear();
+    }
+
+    private static boolean wasMsgAlreadyImported(ImportDedupeIndex dedupeIndex, long threadId, Recipient recipient, WhatsappBackup.WhatsappBackupItem item) {
+        return dedupeIndex.contains(threadId, item.getDate(), recipient.getId().toLong());
     }
 
     private static int getNumMessages(android.database.sqlite.SQLiteDatabase whatsappDb, boolean importMedia) {
@@ -150,6 +197,15 @@ public class WhatsappBackupImporter {
         return 0;
     }
 
+    private static int getNumMessagesUpTo(android.database.sqlite.SQLiteDatabase whatsappDb, long lastId) {
+        try (Cursor c = whatsappDb.rawQuery("SELECT COUNT(*) FROM messages WHERE _id <= ?", new String[] { String.valueOf(lastId) })) {
+            if (c.moveToFirst()) return c.getInt(0);
+        } catch (Exception e) {
+            Log.w(TAG, e.getMessage());
+        }
+        return 0;
+    }
+
     private static Recipient getRecipient(Context context, WhatsappBackup.WhatsappBackupItem item) {
         Recipient recipient;
         if (item.getAddress() == null) {
@@ -183,12 +239,13 @@ public class WhatsappBackupImporter {
         return false;
     }
 
-    private static void insertMms(MessageTable mmsDb, AttachmentTable attachmentDb, WhatsappBackup.WhatsappBackupItem item, Recipient recipient, long threadId, List<Attachment> attachments) throws MmsException {
+    static void insertMms(MessageTable mmsDb, AttachmentTable attachmentDb, SQLiteDatabase transaction, WhatsappBackup.WhatsappBackupItem item, Recipient recipient, long threadId, List<Attachment> attachments) throws MmsException {
         List<Attachment> quoteAttachments = new LinkedList<>();
         ContentValues contentValues = new ContentValues();
         contentValues.put(DATE_SENT, item.getDate());
         contentValues.put(DATE_SERVER, item.getDate());
         contentValues.put(FROM_RECIPIENT_ID, recipient.getId().serialize());
+        contentValues.put(TO_RECIPIENT_ID, Recipient.self().getId().serialize());
         if (item.getType() == 1) {
             contentValues.put(TYPE, BASE_INBOX_TYPE);
         } else {
@@ -204,13 +261,10 @@ public class WhatsappBackupImporter {
         contentValues.put(READ, 1);
         contentValues.put(UNIDENTIFIED, 0);
 
-        SQLiteDatabase transaction = mmsDb.beginTransaction();
+        // Runs inside the transaction of the import, no nested transaction per message
         long messageId = transaction.insert(TABLE_NAME, null, contentValues);
 
         Map<Attachment, AttachmentId> insertedAttachments = attachmentDb.insertAttachmentsForMessage(messageId, attachments, quoteAttachments);
-        mmsDb.setTransactionSuccessful();
-        mmsDb.endTransaction();
-
     }
 
     private static void insertSms(MessageTable smsDb, SQLiteDatabase transaction, WhatsappBackup.WhatsappBackupItem item, Recipient recipient, long threadId) {
@@ -224,6 +278,7 @@ public class WhatsappBackupImporter {
         addTranslatedTypeToStatement(statement, 6, item.getType());
         addStringToStatement(statement, 7, item.getBody());
         addLongToStatement(statement, 8, threadId);
+        addStringToStatement(statement, 9, Recipient.self().getId().serialize());
 
         statement.execute();
         statement.close();
@@ -0,0 +1,67 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.signal.core.util.logging.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory view of the WhatsApp jid and chat tables, loaded once when an import starts.
+ *
+ * Group subjects are keyed by the raw jid of the chat, phone number addresses are derived from a
+ * raw jid once and memoized, so reading a message no longer needs any query besides the message
+ * cursor itself.
+ */
+final class WhatsappJidDictionary {
+
+    private static final String TAG = WhatsappJidDictionary.class.getSimpleName();
+
+    private final Map<String, String> subjects;
+    private final Map<String, String> addresses = new HashMap<>();
+
+    private WhatsappJidDictionary(Map<String, String> subjects) {
+        this.subjects = subjects;
+    }
+
+    static WhatsappJidDictionary load(SQLiteDatabase whatsappDb) {
+        Map<String, String> subjects = new HashMap<>();
+
+        try (Cursor c = whatsappDb.rawQuery("SELECT jid.raw_string, chat.subject FROM chat JOIN jid ON chat.jid_row_id=jid._id WHERE chat.subject IS NOT NULL", null)) {
+            while (c.moveToNext()) {
+                String rawJid = c.getString(0);
+                if (rawJid != null && !subjects.containsKey(rawJid)) {
+                    subjects.put(rawJid, c.getString(1));
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to load group subjects: " + e.getMessage());
+        }
+
+        Log.i(TAG, "Loaded " + subjects.size() + " group subjects");
+        return new WhatsappJidDictionary(subjects);
+    }
+
+    /**
+     * @return the subject of the group chat with this raw jid, or null if it has none.
+     */
+    String getSubject(String rawJid) {
+        return subjects.get(rawJid);
+    }
+
+    /**
+     * @return the phone number part of a raw jid prefixed with '+', or null for an empty jid.
+     */
+    String getAddress(String rawJid) {
+        if (rawJid == null || rawJid.trim().length() == 0) return null;
+
+        String address = addresses.get(rawJid);
+        if (address == null) {
+            address = "+" + rawJid.split("@")[0]; // Only keep the phone number
+            addresses.put(rawJid, address);
+        }
+        return address;
+    }
+}
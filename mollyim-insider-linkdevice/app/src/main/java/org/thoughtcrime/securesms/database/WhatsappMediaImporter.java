@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.database;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.Attachment;
+import org.thoughtcrime.securesms.mms.MmsException;
+import org.thoughtcrime.securesms.recipients.Recipient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Media stage of the WhatsApp import.
+ *
+ * Media messages are resolved to their attachments as they are read and inserted in batches, in
+ * order, inside the transaction of the import. Dedupe checks are repeated at insert time so
+ * duplicates within one batch are caught as well.
+ */
+final class WhatsappMediaImporter {
+
+    private static final String TAG = WhatsappMediaImporter.class.getSimpleName();
+
+    private static final int BATCH_SIZE = 64;
+
+    private final MessageTable      messageDb;
+    private final AttachmentTable   attachmentDb;
+    private final SQLiteDatabase    transaction;
+    private final ImportDedupeIndex dedupeIndex;
+    private final Set<Long>         modifiedThreads;
+    private final List<Pending>     pending = new ArrayList<>(BATCH_SIZE);
+
+    private int inserted;
+
+    WhatsappMediaImporter(MessageTable messageDb, AttachmentTable attachmentDb, SQLiteDatabase transaction, ImportDedupeIndex dedupeIndex, Set<Long> modifiedThreads) {
+        this.messageDb       = messageDb;
+        this.attachmentDb    = attachmentDb;
+        this.transaction     = transaction;
+        this.dedupeIndex     = dedupeIndex;
+        this.modifiedThreads = modifiedThreads;
+    }
+
+    void add(WhatsappBackup.WhatsappBackupItem item, Recipient recipient, long threadId) throws MmsException {
+        List<Attachment> attachments = WhatsappBackup.getMediaAttachments(item);
+        if (attachments.isEmpty()) return;
+
+        pending.add(new Pending(item, recipient, threadId, attachments));
+        if (pending.size() >= BATCH_SIZE) flush();
+    }
+
+    /**
+     * Inserts all queued media messages. Has to be called before the transaction is committed.
+     */
+    void flush() throws MmsException {
+        for (Pending message : pending) {
+            long fromRecipientId = message.recipient.getId().toLong();
+            if (dedupeIndex != null) {
+                if (dedupeIndex.contains(message.threadId, message.item.getDate(), fromRecipientId)) continue;
+                dedupeIndex.add(message.threadId, message.item.getDate(), fromRecipientId);
+            }
+
+            WhatsappBackupImporter.insertMms(messageDb, attachmentDb, transaction, message.item, message.recipient, message.threadId, message.attachments);
+            modifiedThreads.add(message.threadId);
+            inserted++;
+        }
+        pending.clear();
+    }
+
+    void close() {
+        Log.i(TAG, "Imported " + inserted + " media messages");
+    }
+
+    private static final class Pending {
+        private final WhatsappBackup.WhatsappBackupItem item;
+        private final Recipient                         recipient;
+        private final long                              threadId;
+        private final List<Attachment>                  attachments;
+
+        private Pending(WhatsappBackup.WhatsappBackupItem item, Recipient recipient, long threadId, List<Attachment> attachments) {
+            this.item        = item;
+            this.recipient   = recipient;
+            this.threadId    = threadId;
+            this.attachments = attachments;
+        }
+    }
+}
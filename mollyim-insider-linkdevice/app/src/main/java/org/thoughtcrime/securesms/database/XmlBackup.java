@@ -1,22 +1,18 @@
 package org.thoughtcrime.securesms.database;
 
-import android.text.TextUtils;
-
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
-import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
 
-public class XmlBackup {
+public class XmlBackup implements PlaintextBackupReader {
 
   private static final String PROTOCOL       = "protocol";
   private static final String ADDRESS        = "address";
@@ -35,16 +31,32 @@ public class XmlBackup {
   private static final String TRANSPORT      = "transport";
   private static final String RECIPIENT      = "torecipient";
 
-  private static final SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
-
   private final XmlPullParser parser;
 
+  private long count = -1;
+
   public XmlBackup(String path) throws XmlPullParserException, FileNotFoundException {
+    this(new FileInputStream(path));
+  }
+
+  /**
+   * Reads the backup from any stream, for example a decompressing one. The stream is not closed.
+   */
+  public XmlBackup(InputStream in) throws XmlPullParserException {
     this.parser = XmlPullParserFactory.newInstance().newPullParser();
     parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-    parser.setInput(new FileInputStream(path), null);
+    parser.setInput(in, null);
+  }
+
+  /**
+   * @return the message count announced by the smses element, or -1 if it has not been read (yet).
+   */
+  @Override
+  public long getCount() {
+    return count;
   }
 
+  @Override
   public XmlBackupItem getNext() throws IOException, XmlPullParserException {
     while (parser.next() != XmlPullParser.END_DOCUMENT) {
       if (parser.getEventType() != XmlPullParser.START_TAG) {
@@ -53,6 +65,18 @@ public class XmlBackup {
 
       String name = parser.getName();
 
+      if (name.equalsIgnoreCase("smses")) {
+        String countValue = parser.getAttributeValue(null, "count");
+        if (countValue != null) {
+          try {
+            count = Long.parseLong(countValue);
+          } catch (NumberFormatException e) {
+            count = -1;
+          }
+        }
+        continue;
+      }
+
       if (!name.equalsIgnoreCase("sms")) {
         continue;
       }
@@ -111,7 +135,7 @@ public class XmlBackup {
       this.address       = address;
       this.contactName   = contactName;
       this.date          = date;
-      this.readableDate  = dateFormatter.format(date);
+      this.readableDate  = null; // Formatted on demand, compact exports never need it
       this.type          = type;
       this.subject       = subject;
       this.body          = body;
@@ -139,6 +163,9 @@ public class XmlBackup {
     }
 
     public String getReadableDate() {
+      if (readableDate == null) {
+        readableDate = ReadableDateFormatter.format(date);
+      }
       return readableDate;
     }
 
@@ -170,87 +197,118 @@ public class XmlBackup {
     public long getRecipient() { return torecipient; }
   }
 
-  public static class Writer {
-
-    private static final String  XML_HEADER      = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\" ?>";
-    private static final String  CREATED_BY      = "<!-- File Created By Signal -->";
-    private static final String  OPEN_TAG_SMSES  = "<smses count=\"%d\">";
-    private static final String  CLOSE_TAG_SMSES = "</smses>";
-    private static final String  OPEN_TAG_SMS    = " <sms ";
-    private static final String  CLOSE_EMPTYTAG  = "/>";
-    private static final String  OPEN_ATTRIBUTE  = "=\"";
-    private static final String  CLOSE_ATTRIBUTE = "\" ";
+  public static class Writer implements PlaintextBackupWriter {
 
-    private static final Pattern PATTERN         = Pattern.compile("[^\u0020-\uD7FF]");
+    private static final String  XML_HEADER           = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\" ?>";
+    private static final String  CREATED_BY           = "<!-- File Created By Signal -->";
+    private static final String  OPEN_TAG_SMSES_START = "<smses count=\"";
+    private static final String  OPEN_TAG_SMSES_END   = "\">";
+    private static final String  CLOSE_TAG_SMSES      = "</smses>";
+    private static final String  OPEN_TAG_SMS         = " <sms ";
+    private static final String  CLOSE_EMPTYTAG       = "/>";
+    private static final String  OPEN_ATTRIBUTE       = "=\"";
+    private static final String  CLOSE_ATTRIBUTE      = "\" ";
 
-    private final BufferedWriter bufferedWriter;
+    private final XmlCharWriter out;
+    private final boolean       compact;
 
     public Writer(String path, int count) throws IOException {
-      bufferedWriter = new BufferedWriter(new FileWriter(path, false));
+      this(path, count, false);
+    }
+
+    /**
+     * @param compact leave out the readable_date attribute. Importers only use the date attribute.
+     */
+    public Writer(String path, int count, boolean compact) throws IOException {
+      this(new FileOutputStream(path, false), count, compact);
+    }
 
-      bufferedWriter.write(XML_HEADER);
-      bufferedWriter.newLine();
-      bufferedWriter.write(CREATED_BY);
-      bufferedWriter.newLine();
-      bufferedWriter.write(String.format(Locale.ROOT, OPEN_TAG_SMSES, count));
+    /**
+     * Writes the backup to any stream, for example a zip entry. The stream is closed by {@link #close()},
+     * or right away if the header can not be written. The smses element is only closed by {@link #finish()}.
+     */
+    public Writer(OutputStream stream, int count, boolean compact) throws IOException {
+      this.out     = new XmlCharWriter(Channels.newChannel(stream));
+      this.compact = compact;
+
+      try {
+        out.write(XML_HEADER);
+        out.newLine();
+        out.write(CREATED_BY);
+        out.newLine();
+        out.write(OPEN_TAG_SMSES_START);
+        out.writeLong(count);
+        out.write(OPEN_TAG_SMSES_END);
+      } catch (IOException | RuntimeException e) {
+        closeQuietly(stream, e);
+        throw e;
+      }
     }
 
+    @Override
     public void writeItem(XmlBackupItem item) throws IOException {
-      StringBuilder stringBuilder = new StringBuilder();
-
-      stringBuilder.append(OPEN_TAG_SMS);
-      appendAttribute(stringBuilder, PROTOCOL, item.getProtocol());
-      appendAttribute(stringBuilder, ADDRESS, escapeXML(item.getAddress()));
-      appendAttribute(stringBuilder, CONTACT_NAME, escapeXML(item.getContactName()));
-      appendAttribute(stringBuilder, DATE, item.getDate());
-      appendAttribute(stringBuilder, READABLE_DATE, item.getReadableDate());
-      appendAttribute(stringBuilder, TYPE, item.getType());
-      appendAttribute(stringBuilder, SUBJECT, escapeXML(item.getSubject()));
-      appendAttribute(stringBuilder, BODY, escapeXML(item.getBody()));
-      appendAttribute(stringBuilder, TOA, "null");
-      appendAttribute(stringBuilder, SC_TOA, "null");
-      appendAttribute(stringBuilder, SERVICE_CENTER, item.getServiceCenter());
-      appendAttribute(stringBuilder, READ, item.getRead());
-      appendAttribute(stringBuilder, STATUS, item.getStatus());
-      appendAttribute(stringBuilder, LOCKED, 0);
-      appendAttribute(stringBuilder, TRANSPORT, item.getTransport());
-      appendAttribute(stringBuilder, RECIPIENT, item.getRecipient());
-      stringBuilder.append(CLOSE_EMPTYTAG);
-
-      bufferedWriter.newLine();
-      bufferedWriter.write(stringBuilder.toString());
+      out.newLine();
+      out.write(OPEN_TAG_SMS);
+      appendAttribute(PROTOCOL, item.getProtocol());
+      appendEscapedAttribute(ADDRESS, item.getAddress());
+      appendEscapedAttribute(CONTACT_NAME, item.getContactName());
+      appendAttribute(DATE, item.getDate());
+      if (!compact) {
+        appendAttribute(READABLE_DATE, item.getReadableDate());
+      }
+      appendAttribute(TYPE, item.getType());
+      appendEscapedAttribute(SUBJECT, item.getSubject());
+      appendEscapedAttribute(BODY, item.getBody());
+      appendAttribute(TOA, "null");
+      appendAttribute(SC_TOA, "null");
+      appendAttribute(SERVICE_CENTER, item.getServiceCenter());
+      appendAttribute(READ, item.getRead());
+      appendAttribute(STATUS, item.getStatus());
+      appendAttribute(LOCKED, 0);
+      appendAttribute(TRANSPORT, item.getTransport());
+      appendAttribute(RECIPIENT, item.getRecipient());
+      out.write(CLOSE_EMPTYTAG);
     }
 
-    private <T> void appendAttribute(StringBuilder stringBuilder, String name, T value) {
-      stringBuilder.append(name).append(OPEN_ATTRIBUTE).append(value).append(CLOSE_ATTRIBUTE);
+    private void appendAttribute(String name, long value) throws IOException {
+      out.write(name);
+      out.write(OPEN_ATTRIBUTE);
+      out.writeLong(value);
+      out.write(CLOSE_ATTRIBUTE);
     }
 
-    public void close() throws IOException {
-      bufferedWriter.newLine();
-      bufferedWriter.write(CLOSE_TAG_SMSES);
-      bufferedWriter.close();
+    private void appendAttribute(String name, String value) throws IOException {
+      out.write(name);
+      out.write(OPEN_ATTRIBUTE);
+      out.writeNullable(value);
+      out.write(CLOSE_ATTRIBUTE);
     }
 
-    private String escapeXML(String s) {
-      if (TextUtils.isEmpty(s)) return s;
+    private void appendEscapedAttribute(String name, String value) throws IOException {
+      out.write(name);
+      out.write(OPEN_ATTRIBUTE);
+      out.writeEscaped(value);
+      out.write(CLOSE_ATTRIBUTE);
+    }
 
-      Matcher matcher = PATTERN.matcher( s.replace("&",  "&amp;")
-                                          .replace("<",  "&lt;")
-                                          .replace(">",  "&gt;")
-                                          .replace("\"", "&quot;")
-                                          .replace("'",  "&apos;"));
-      StringBuffer st = new StringBuffer();
+    @Override
+    public void finish() throws IOException {
+      out.newLine();
+      out.write(CLOSE_TAG_SMSES);
+      out.flush();
+    }
 
-      while (matcher.find()) {
-        String escaped="";
-        for (char ch: matcher.group(0).toCharArray()) {
-          escaped += ("&#" + ((int) ch) + ";");
-        }
-        matcher.appendReplacement(st, escaped);
-      }
-      matcher.appendTail(st);
-      return st.toString();
+    @Override
+    public void close() throws IOException {
+      out.close();
     }
 
+    private static void closeQuietly(OutputStream stream, Exception cause) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        cause.addSuppressed(e);
+      }
+    }
   }
 }
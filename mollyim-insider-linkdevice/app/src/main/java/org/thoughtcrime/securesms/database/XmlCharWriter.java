@@ -0,0 +1,181 @@
+package org.thoughtcrime.securesms.database;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered UTF-8 output for {@link XmlBackup.Writer}.
+ *
+ * Characters are collected in one reusable char array, attribute values are escaped in a single
+ * pass and numbers are written without boxing or temporary strings. The encoded bytes go through a
+ * large direct buffer to the channel, so the per-item cost does not depend on the GC.
+ */
+final class XmlCharWriter implements Closeable {
+
+  private static final int    CHAR_BUFFER_SIZE = 64 * 1024;
+  private static final int    BYTE_BUFFER_SIZE = 256 * 1024;
+  private static final String LINE_SEPARATOR   = System.lineSeparator();
+
+  private final WritableByteChannel channel;
+  private final CharsetEncoder      encoder;
+  private final char[]              chars;
+  private final CharBuffer          charView;
+  private final ByteBuffer          bytes;
+  private final char[]              digits = new char[20];
+
+  private int count;
+
+  XmlCharWriter(WritableByteChannel channel) {
+    this.channel  = channel;
+    this.encoder  = StandardCharsets.UTF_8.newEncoder()
+                                          .onMalformedInput(CodingErrorAction.REPLACE)
+                                          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.chars    = new char[CHAR_BUFFER_SIZE];
+    this.charView = CharBuffer.wrap(chars);
+    this.bytes    = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+  }
+
+  void write(char c) throws IOException {
+    if (count == chars.length) {
+      encodeChars(false);
+    }
+    chars[count++] = c;
+  }
+
+  void write(String s) throws IOException {
+    int length = s.length();
+    int offset = 0;
+
+    while (offset < length) {
+      if (count == chars.length) {
+        encodeChars(false);
+      }
+      int n = Math.min(chars.length - count, length - offset);
+      s.getChars(offset, offset + n, chars, count);
+      count  += n;
+      offset += n;
+    }
+  }
+
+  /**
+   * Same output as {@link StringBuilder#append(Object)} for a String, so null becomes "null".
+   */
+  void writeNullable(String s) throws IOException {
+    write(s != null ? s : "null");
+  }
+
+  void writeLong(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      write(Long.toString(value));
+      return;
+    }
+
+    if (chars.length - count < digits.length + 1) {
+      encodeChars(false);
+    }
+
+    if (value < 0) {
+      chars[count++] = '-';
+      value = -value;
+    }
+
+    int position = digits.length;
+    do {
+      digits[--position] = (char) ('0' + (value % 10));
+      value /= 10;
+    } while (value != 0);
+
+    int n = digits.length - position;
+    System.arraycopy(digits, position, chars, count, n);
+    count += n;
+  }
+
+  /**
+   * Escapes the XML special characters and every char outside of U+0020..U+D7FF as a numeric
+   * character reference, one UTF-16 unit at a time. A null value is written as "null".
+   */
+  void writeEscaped(String s) throws IOException {
+    if (s == null) {
+      write("null");
+      return;
+    }
+
+    for (int i = 0, length = s.length(); i < length; i++) {
+      char c = s.charAt(i);
+
+      switch (c) {
+        case '&':  write("&amp;");  break;
+        case '<':  write("&lt;");   break;
+        case '>':  write("&gt;");   break;
+        case '"':  write("&quot;"); break;
+        case '\'': write("&apos;"); break;
+        default:
+          if (c >= ' ' && c <= '\uD7FF') {
+            write(c);
+          } else {
+            write('&');
+            write('#');
+            writeLong(c);
+            write(';');
+          }
+      }
+    }
+  }
+
+  void newLine() throws IOException {
+    write(LINE_SEPARATOR);
+  }
+
+  void flush() throws IOException {
+    encodeChars(true);
+    encoder.flush(bytes);
+    writeBytes();
+    encoder.reset();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void encodeChars(boolean endOfInput) throws IOException {
+    charView.limit(count).position(0);
+
+    while (true) {
+      CoderResult result = encoder.encode(charView, bytes, endOfInput);
+      if (result.isOverflow()) {
+        writeBytes();
+      } else {
+        if (result.isError()) result.throwException();
+        break;
+      }
+    }
+
+    // A trailing high surrogate stays in the buffer until its low surrogate arrives
+    int remaining = charView.remaining();
+    if (remaining > 0) {
+      System.arraycopy(chars, charView.position(), chars, 0, remaining);
+    }
+    count = remaining;
+    charView.clear();
+  }
+
+  private void writeBytes() throws IOException {
+    bytes.flip();
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+    bytes.clear();
+  }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import java.io.File;
 
 public class WaDbOpenHelper extends SQLiteOpenHelper {
 
@@ -15,6 +16,10 @@ public class WaDbOpenHelper extends SQLiteOpenHelper {
 
     }
 
+    public static File getDatabaseFile(Context context) {
+        return new WaDbContext(context).getDatabasePath(DB_NAME);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
     }
@@ -2,8 +2,8 @@ package org.thoughtcrime.securesms.util;
 
 import android.content.Context;
 
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
 import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.model.enums.AesKeyStrength;
 import net.lingala.zip4j.model.enums.CompressionLevel;
@@ -14,59 +14,94 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.lang.String;
-import java.security.SecureRandom;
 
 
 public class FileUtilsJW {
 
   private static final String TAG = FileUtilsJW.class.getSimpleName();
 
+  private static final int ZIP_STREAM_BUFFER_SIZE = 64 * 1024;
+
+  // Compression profiles for plaintext zipfiles, the values of pref_plain_compression_values
+  public static final String COMPRESSION_STORE    = "store";
+  public static final String COMPRESSION_FASTEST  = "fastest";
+  public static final String COMPRESSION_BALANCED = "balanced";
+  public static final String COMPRESSION_MAXIMUM  = "maximum";
+  public static final String COMPRESSION_PARALLEL = "parallel";
+
+  // Suffix of the plaintext backup in a zipfile made with the parallel profile
+  public static final String GZIP_SUFFIX = ".gz";
+
   //------------------------------------------------------------------------------------------------
   // Handle backups in encrypted zipfiles
-  public static boolean createEncryptedZipfile(Context context, String zipFileName, String exportDirectory, String exportSecretsDirectory) {
-    try {
-      String password = getBackupPassword(context);
-      ZipFile zipFile = new ZipFile(zipFileName);
-      ZipParameters parameters = new ZipParameters();
-      parameters.setCompressionMethod(CompressionMethod.STORE); // Encrypted data is uncompressable anyway
-      //parameters.setCompressionLevel(CompressionLevel.FASTEST);
-      if (password.length() > 0 ) {
-        parameters.setEncryptFiles(true);
-        parameters.setEncryptionMethod(EncryptionMethod.AES);
-        parameters.setAesKeyStrength(AesKeyStrength.KEY_STRENGTH_256);
-        zipFile.setPassword(password.toCharArray());
-      }
-      zipFile.addFolder(new File(exportSecretsDirectory), parameters);
-      zipFile.addFolder(new File(exportDirectory), parameters);
-    } catch (ZipException e) {
-      Log.w(TAG, "createEncryptedZipfile failed: " + e.toString());
-      return false;
+
+  // Store keeps the data as is, the parallel profile stores data that is gzipped already
+  public static ZipParameters getPlaintextEntryParameters(String profile) {
+    ZipParameters parameters = new ZipParameters();
+    switch (profile) {
+      case COMPRESSION_STORE:
+      case COMPRESSION_PARALLEL:
+        parameters.setCompressionMethod(CompressionMethod.STORE);
+        break;
+      case COMPRESSION_FASTEST:
+        parameters.setCompressionLevel(CompressionLevel.FASTEST);
+        break;
+      case COMPRESSION_BALANCED:
+        parameters.setCompressionLevel(CompressionLevel.NORMAL);
+        break;
+      default:
+        parameters.setCompressionLevel(CompressionLevel.MAXIMUM);
+        break;
     }
-    return true;
+    return parameters;
   }
 
-  public static boolean createEncryptedPlaintextZipfile(Context context, String zipFileName, String inputFileName) {
-    try {
-      String password = getBackupPassword(context);
-      ZipFile zipFile = new ZipFile(zipFileName);
-      ZipParameters parameters = new ZipParameters();
-      parameters.setCompressionLevel(CompressionLevel.MAXIMUM);
-      if (password.length() > 0 ) {
-        parameters.setEncryptFiles(true);
-        parameters.setEncryptionMethod(EncryptionMethod.AES);
-        parameters.setAesKeyStrength(AesKeyStrength.KEY_STRENGTH_256);
-        zipFile.setPassword(password.toCharArray());
-      }
-      zipFile.addFile(inputFileName, parameters);
-    } catch (ZipException e) {
-      Log.w(TAG, "createEncryptedPlaintextZipfile failed: " + e.toString());
-      return false;
+  // Entry for a plaintext backup streamed into a zipfile, the size is only used for stored entries
+  public static ZipParameters getPlaintextStreamEntryParameters(String profile, String fileNameInZip, long size, String password) {
+    ZipParameters parameters = getPlaintextEntryParameters(profile);
+    parameters.setFileNameInZip(fileNameInZip);
+    parameters.setLastModifiedFileTime(System.currentTimeMillis());
+    if (parameters.getCompressionMethod() == CompressionMethod.STORE) {
+      parameters.setEntrySize(size);
+    }
+    if (password.length() > 0) {
+      parameters.setEncryptFiles(true);
+      parameters.setEncryptionMethod(EncryptionMethod.AES);
+      parameters.setAesKeyStrength(AesKeyStrength.KEY_STRENGTH_256);
+    }
+    return parameters;
+  }
+
+  // Entries are written to and read from the zipfile directly, without an intermediate copy on
+  // disk. An empty password gives an unencrypted zipfile.
+  public static ZipOutputStream openEncryptedZipOutputStream(File zipFile, String password) throws IOException {
+    return new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile), ZIP_STREAM_BUFFER_SIZE), password.length() > 0 ? password.toCharArray() : null);
+  }
+
+  public static ZipInputStream openEncryptedZipInputStream(File zipFile, String password) throws IOException {
+    return new ZipInputStream(new BufferedInputStream(new FileInputStream(zipFile), ZIP_STREAM_BUFFER_SIZE), password.length() > 0 ? password.toCharArray() : null);
+  }
+
+  // Stored entries need their size up front when streamed
+  public static ZipParameters getStoredEntryParameters(String fileNameInZip, long size, long lastModified, String password) {
+    ZipParameters parameters = new ZipParameters();
+    parameters.setCompressionMethod(CompressionMethod.STORE); // Encrypted data is uncompressable anyway
+    parameters.setFileNameInZip(fileNameInZip);
+    parameters.setEntrySize(size);
+    parameters.setLastModifiedFileTime(lastModified);
+    if (password.length() > 0) {
+      parameters.setEncryptFiles(true);
+      parameters.setEncryptionMethod(EncryptionMethod.AES);
+      parameters.setAesKeyStrength(AesKeyStrength.KEY_STRENGTH_256);
     }
-    return true;
+    return parameters;
   }
 
   // Get the password of the regular backup. If there is no regular backup set, return an empty string.
@@ -76,7 +111,7 @@ public class FileUtilsJW {
     if (chatBackupsEnabled) {
       password = BackupPassphrase.get(context);
       if (password == null) {
-        Log.w(TAG, "createEncryptedZipfile: empty zipfile password");
+        Log.w(TAG, "getBackupPassword: empty zipfile password");
         password = "";
       }
       // Plaintext storage of password may contain spaces
@@ -85,21 +120,6 @@ public class FileUtilsJW {
     return password;
   }
 
-  public static boolean extractEncryptedZipfile(Context context, String fileName, String directoryName) {
-    String password = getBackupPassword(context);
-
-    try {
-      ZipFile zipFile = new ZipFile(fileName);
-      if (zipFile.isEncrypted()) {
-        zipFile.setPassword(password.toCharArray());
-      }
-      zipFile.extractAll(directoryName);
-    } catch (Exception e) {
-      Log.w(TAG, "extractEncryptedZipfile failed: " + e.toString());
-      return false;
-    }
-    return true;
-  }
   //------------------------------------------------------------------------------------------------
 
   public static void deleteRecursive(File fileOrDirectory) {
@@ -112,17 +132,8 @@ public class FileUtilsJW {
   }
 
   public static void secureDeleteRecursive(File fileOrDirectory) {
-    if (fileOrDirectory.isDirectory()) {
-      for (File child : fileOrDirectory.listFiles()) {
-        secureDeleteRecursive(child);
-      }
-    }
     try {
-      if (!fileOrDirectory.isFile()) {
-        fileOrDirectory.delete();
-      } else {
-        secureDelete(fileOrDirectory);
-      }
+      SecureFileWiper.wipeTree(fileOrDirectory);
     } catch (IOException e) {
       Log.w(TAG, "secureDeleteRecursive failed: " + e.toString());
     }
@@ -130,21 +141,6 @@ public class FileUtilsJW {
 
   // Not perfect on wear-leveling flash memory but still better than nothing.
   public static void secureDelete(File file) throws IOException {
-    if (file.exists()) {
-      long length = file.length();
-      SecureRandom random = new SecureRandom();
-      RandomAccessFile raf = new RandomAccessFile(file, "rws");
-      raf.seek(0);
-      raf.getFilePointer();
-      byte[] data = new byte[64];
-      long pos = 0;
-      while (pos < length) {
-        random.nextBytes(data);
-        raf.write(data);
-        pos += data.length;
-      }
-      raf.close();
-      file.delete();
-    }
+    SecureFileWiper.wipeFile(file);
   }
 }
@@ -0,0 +1,214 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.ImportExportProgress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Copies a directory tree with a bounded pool of workers.
+ *
+ * The tree is walked once up front, which creates the target directories and yields the list of
+ * files to copy. The files are then copied in parallel, every copy loops transferTo until the
+ * whole file is transferred and verifies the size of the result. Failures are collected and
+ * reported together once all other files have been copied.
+ */
+public final class ParallelFileCopier {
+
+  private static final String TAG = ParallelFileCopier.class.getSimpleName();
+
+  private static final int MAX_WORKERS = 4;
+
+  public interface PathFilter {
+    /**
+     * @param relativePath path below the source root, starting with a separator, e.g. "/lib".
+     */
+    boolean accept(@NonNull String relativePath, @NonNull File file);
+  }
+
+  private ParallelFileCopier() {}
+
+  public static void copyTree(@NonNull File sourceRoot, @NonNull File targetRoot, @NonNull PathFilter filter, @NonNull ImportExportProgress progress)
+      throws IOException
+  {
+    List<String> directories = new ArrayList<>();
+    List<String> files       = new ArrayList<>();
+    walk(sourceRoot, filter, directories, files);
+
+    for (String relativeDirectory : directories) {
+      File targetDirectory = new File(targetRoot, relativeDirectory);
+      if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+        throw new IOException("Could not create directory " + targetDirectory.getAbsolutePath());
+      }
+    }
+
+    copyFiles(sourceRoot, targetRoot, files, progress);
+  }
+
+  /**
+   * Copies the given files, creating their target directories where needed.
+   *
+   * @param files paths relative to sourceRoot and targetRoot, starting with a separator.
+   */
+  public static void copyFiles(@NonNull File sourceRoot, @NonNull File targetRoot, @NonNull List<String> files, @NonNull ImportExportProgress progress)
+      throws IOException
+  {
+    Set<File>      parents = new HashSet<>();
+    List<CopyTask> tasks   = new ArrayList<>(files.size());
+    for (String relativePath : files) {
+      File target = new File(targetRoot, relativePath);
+      File parent = target.getParentFile();
+
+      if (parents.add(parent) && !parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Could not create directory " + parent.getAbsolutePath());
+      }
+      tasks.add(new CopyTask(new File(sourceRoot, relativePath), target));
+    }
+
+    long totalBytes = 0;
+    for (CopyTask task : tasks) totalBytes += task.source.length();
+    Log.i(TAG, "Copying " + tasks.size() + " files, " + totalBytes + " bytes, from " + sourceRoot);
+
+    progress.setPhase(ImportExportProgress.Phase.COPYING, tasks.size());
+
+    ExecutorService         workers = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors())));
+    CompletionService<Void> done    = new ExecutorCompletionService<>(workers);
+    List<String>            failed  = new ArrayList<>();
+
+    try {
+      for (CopyTask task : tasks) {
+        done.submit(() -> {
+          task.run();
+          return null;
+        });
+      }
+
+      for (int i = 0; i < tasks.size(); i++) {
+        try {
+          done.take().get();
+        } catch (ExecutionException e) {
+          Log.w(TAG, e.getCause());
+          failed.add(e.getCause().getMessage());
+        }
+        progress.update(i + 1);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Copy of " + sourceRoot + " interrupted", e);
+    } finally {
+      workers.shutdownNow();
+    }
+    progress.finish();
+
+    if (!failed.isEmpty()) {
+      throw new IOException(failed.size() + " of " + tasks.size() + " files could not be copied, first: " + failed.get(0));
+    }
+  }
+
+  /**
+   * Copies one file completely and verifies that the target has the size the source had when the
+   * copy started. Files that grow while they are copied are copied up to that size.
+   */
+  public static void copyFile(@NonNull File from, @NonNull File to) throws IOException {
+    try (FileChannel source      = new FileInputStream(from).getChannel();
+         FileChannel destination = new FileOutputStream(to).getChannel())
+    {
+      long size     = source.size();
+      long position = 0;
+
+      while (position < size) {
+        long transferred = source.transferTo(position, size - position, destination);
+        if (transferred <= 0) {
+          throw new IOException("Copy of " + from + " stalled at " + position + " of " + size + " bytes");
+        }
+        position += transferred;
+      }
+
+      destination.force(false);
+      if (destination.size() != size) {
+        throw new IOException("Copy of " + from + " has " + destination.size() + " bytes, expected " + size);
+      }
+    }
+  }
+
+  /**
+   * @return the paths of all accepted files below sourceRoot, relative to it and starting with a
+   *         separator.
+   */
+  public static @NonNull List<String> listFiles(@NonNull File sourceRoot, @NonNull PathFilter filter) throws IOException {
+    List<String> files = new ArrayList<>();
+    walk(sourceRoot, filter, new ArrayList<>(), files);
+    return files;
+  }
+
+  // Collects the relative paths of the accepted directories, the root included as "", and files
+  private static void walk(File sourceRoot, PathFilter filter, List<String> directoriesOut, List<String> filesOut) throws IOException {
+    Deque<String> directories = new ArrayDeque<>();
+
+    directories.push("");
+
+    while (!directories.isEmpty()) {
+      String relativeDirectory = directories.pop();
+      File   directory         = new File(sourceRoot, relativeDirectory);
+      File[] contents          = directory.listFiles();
+
+      if (contents == null) {
+        throw new IOException("directory.listFiles() is null for " + directory.getAbsolutePath() + "!");
+      }
+
+      directoriesOut.add(relativeDirectory);
+
+      for (File file : contents) {
+        String relativePath = relativeDirectory + File.separator + file.getName();
+
+        if (!filter.accept(relativePath, file)) {
+          continue;
+        }
+
+        if (file.isFile()) {
+          filesOut.add(relativePath);
+        } else if (file.isDirectory()) {
+          directories.push(relativePath);
+        }
+      }
+    }
+  }
+
+  private static final class CopyTask {
+    private final File source;
+    private final File target;
+
+    private CopyTask(File source, File target) {
+      this.source = source;
+      this.target = target;
+    }
+
+    void run() throws IOException {
+      try {
+        copyFile(source, target);
+      } catch (FileNotFoundException e) {
+        // Temporary files like journals can disappear between the walk and the copy
+        if (source.exists()) throw e;
+        Log.w(TAG, "Skipping vanished file " + source.getAbsolutePath());
+      }
+    }
+  }
+}
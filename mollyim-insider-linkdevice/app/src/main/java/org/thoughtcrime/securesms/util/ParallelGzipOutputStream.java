@@ -0,0 +1,152 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output that deflates on several cores.
+ *
+ * The data is cut into blocks of 1 MiB and every block is compressed on a worker into a gzip
+ * member of its own. The members are written in order, and concatenated members form a valid gzip
+ * stream that {@link java.util.zip.GZIPInputStream} reads as one. Compression is slightly worse
+ * than a single member, because no block can refer back to the previous one.
+ *
+ * The number of blocks in flight is bounded, so memory use does not depend on the input size.
+ */
+public final class ParallelGzipOutputStream extends OutputStream {
+
+  private static final int BLOCK_SIZE  = 1024 * 1024;
+  private static final int MAX_WORKERS = 4;
+
+  private final OutputStream          out;
+  private final int                   level;
+  private final int                   maxPending;
+  private final ExecutorService       workers;
+  private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+  private byte[]  block   = new byte[BLOCK_SIZE];
+  private int     count;
+  private boolean written;
+  private boolean closed;
+
+  /**
+   * @param level a {@link java.util.zip.Deflater} compression level.
+   */
+  public ParallelGzipOutputStream(@NonNull OutputStream out, int level) {
+    int workerCount = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+
+    this.out        = out;
+    this.level      = level;
+    this.maxPending = workerCount * 2;
+    this.workers    = Executors.newFixedThreadPool(workerCount);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (count == block.length) {
+      submitBlock();
+    }
+    block[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(@NonNull byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == block.length) {
+        submitBlock();
+      }
+      int n = Math.min(block.length - count, len);
+      System.arraycopy(b, off, block, count, n);
+      count += n;
+      off   += n;
+      len   -= n;
+    }
+  }
+
+  /**
+   * Writes the blocks that are compressed already. The block being filled is only compressed once
+   * it is full or the stream is closed.
+   */
+  @Override
+  public void flush() throws IOException {
+    while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+      writeFirstPending();
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+
+    try {
+      // An empty input still needs one member to be a valid gzip stream
+      if (count > 0 || !written) {
+        submitBlock();
+      }
+      while (!pending.isEmpty()) {
+        writeFirstPending();
+      }
+    } finally {
+      workers.shutdownNow();
+      out.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    byte[] data   = block;
+    int    length = count;
+
+    pending.addLast(workers.submit(() -> compress(data, length, level)));
+    written = true;
+    block   = new byte[BLOCK_SIZE];
+    count   = 0;
+
+    while (pending.size() > maxPending) {
+      writeFirstPending();
+    }
+  }
+
+  private void writeFirstPending() throws IOException {
+    try {
+      out.write(pending.removeFirst().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Compression interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException("Compression failed", e.getCause());
+    }
+  }
+
+  private static byte[] compress(byte[] data, int length, int level) throws IOException {
+    ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+
+    try (GZIPOutputStream gzip = new LevelGzipOutputStream(member, level)) {
+      gzip.write(data, 0, length);
+    }
+    return member.toByteArray();
+  }
+
+  /**
+   * {@link GZIPOutputStream} only exposes the level of its deflater to subclasses.
+   */
+  private static final class LevelGzipOutputStream extends GZIPOutputStream {
+    LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+      super(out, 64 * 1024);
+      def.setLevel(level);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Overwrites files before deleting them.
+ *
+ * Files are overwritten in place in 1 MiB blocks aligned to the start of the file, with the
+ * output of AES in counter mode under a random key, which is as unpredictable as SecureRandom
+ * output but a lot cheaper to produce. Every pass is written through the file channel and forced
+ * to storage once at its end. Directory trees are wiped with a bounded pool of workers.
+ *
+ * Not perfect on wear-leveling flash memory but still better than nothing.
+ */
+public final class SecureFileWiper {
+
+  private static final String TAG = SecureFileWiper.class.getSimpleName();
+
+  private static final int BLOCK_SIZE     = 1024 * 1024;
+  private static final int DEFAULT_PASSES = 1;
+  private static final int MAX_WORKERS    = 4;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private SecureFileWiper() {}
+
+  /**
+   * Overwrites and deletes a single file, does nothing if it does not exist.
+   */
+  public static void wipeFile(@NonNull File file) throws IOException {
+    wipeFile(file, DEFAULT_PASSES, new byte[BLOCK_SIZE], new byte[BLOCK_SIZE]);
+  }
+
+  /**
+   * Overwrites and deletes all files below and including fileOrDirectory, then removes the
+   * directories. Failures are collected and reported together once everything else is wiped.
+   */
+  public static void wipeTree(@NonNull File fileOrDirectory) throws IOException {
+    if (!fileOrDirectory.isDirectory()) {
+      wipeFile(fileOrDirectory);
+      return;
+    }
+
+    List<File>  directories = new ArrayList<>();
+    List<File>  files       = new ArrayList<>();
+    Deque<File> pending     = new ArrayDeque<>();
+
+    pending.push(fileOrDirectory);
+    while (!pending.isEmpty()) {
+      File   directory = pending.pop();
+      File[] contents  = directory.listFiles();
+
+      directories.add(directory);
+      if (contents == null) continue;
+
+      for (File file : contents) {
+        if (file.isDirectory()) pending.push(file);
+        else                    files.add(file);
+      }
+    }
+
+    int                     workerCount = Math.max(1, Math.min(MAX_WORKERS, Math.min(files.size(), Runtime.getRuntime().availableProcessors())));
+    ExecutorService         workers     = Executors.newFixedThreadPool(workerCount);
+    CompletionService<Void> done        = new ExecutorCompletionService<>(workers);
+    ThreadLocal<byte[][]>   buffers     = new ThreadLocal<byte[][]>() {
+      @Override
+      protected byte[][] initialValue() {
+        return new byte[][] { new byte[BLOCK_SIZE], new byte[BLOCK_SIZE] };
+      }
+    };
+    List<String> failed = new ArrayList<>();
+
+    try {
+      for (File file : files) {
+        done.submit(() -> {
+          byte[][] buffer = buffers.get();
+          wipeFile(file, DEFAULT_PASSES, buffer[0], buffer[1]);
+          return null;
+        });
+      }
+
+      for (int i = 0; i < files.size(); i++) {
+        try {
+          done.take().get();
+        } catch (ExecutionException e) {
+          Log.w(TAG, e.getCause());
+          failed.add(e.getCause().getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Wipe of " + fileOrDirectory + " interrupted", e);
+    } finally {
+      workers.shutdownNow();
+    }
+
+    // Children were listed after their parents, so deleting in reverse empties every directory first
+    for (int i = directories.size() - 1; i >= 0; i--) {
+      directories.get(i).delete();
+    }
+
+    if (!failed.isEmpty()) {
+      throw new IOException(failed.size() + " of " + files.size() + " files could not be wiped, first: " + failed.get(0));
+    }
+  }
+
+  // zeros stays all zero, it is the plaintext the keystream is produced from
+  private static void wipeFile(File file, int passes, byte[] zeros, byte[] keystream) throws IOException {
+    if (!file.exists()) return;
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      FileChannel channel = raf.getChannel();
+      long        length  = channel.size();
+
+      for (int pass = 0; pass < passes; pass++) {
+        Cipher cipher   = newKeystream();
+        long   position = 0;
+
+        while (position < length) {
+          int blockLength = (int) Math.min(BLOCK_SIZE, length - position);
+
+          try {
+            cipher.update(zeros, 0, blockLength, keystream, 0);
+          } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+          }
+
+          ByteBuffer block = ByteBuffer.wrap(keystream, 0, blockLength);
+          while (block.hasRemaining()) {
+            position += channel.write(block, position);
+          }
+        }
+        channel.force(false);
+      }
+    }
+
+    if (!file.delete()) {
+      throw new IOException("Could not delete " + file.getAbsolutePath() + " after overwriting it");
+    }
+  }
+
+  private static Cipher newKeystream() {
+    byte[] key = new byte[32];
+    byte[] iv  = new byte[16];
+    RANDOM.nextBytes(key);
+    RANDOM.nextBytes(iv);
+
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      return cipher;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -191,12 +191,24 @@ public class TextSecurePreferences {
   public static final String BACKUP_STORE_ZIPFILE_PREF = "pref_backup_zipfile";
   // JW: added to use encrypted zipfiles to store plaintext backups
   public static final String BACKUP_STORE_ZIPFILE_PLAIN_PREF = "pref_backup_zipfile_plain";
+  // JW: added to leave the readable date out of plaintext backups
+  public static final String BACKUP_PLAIN_COMPACT_PREF = "pref_backup_plain_compact";
+  // JW: added to only export files that changed since the previous raw backup
+  public static final String BACKUP_RAW_INCREMENTAL_PREF = "pref_backup_raw_incremental";
+  // JW: added to select how plaintext backups are compressed in a zipfile
+  public static final String BACKUP_PLAIN_COMPRESSION_PREF = "pref_backup_plain_compression";
+  // JW: added to write plaintext backups in the binary format instead of XML
+  public static final String BACKUP_PLAIN_BINARY_PREF = "pref_backup_plain_binary";
   // JW: used to see if we delete view once messagres or not
   public static final String KEEP_VIEW_ONCE_MESSAGES = "pref_keep_view_once_messages";
   // JW: used to see if we ignore remote delete messages or not
   public static final String IGNORE_REMOTE_DELETE = "pref_ignore_remote_delete";
   // JW: delete only media, not the rest of the message, from the All media screen
   public static final String DELETE_MEDIA_ONLY = "pref_delete_media_only";
+  // JW: position of the last committed chunk of an interrupted plaintext import
+  public static final String PLAINTEXT_IMPORT_CHECKPOINT = "pref_plaintext_import_checkpoint";
+  // JW: last committed WhatsApp _id of an interrupted WhatsApp import
+  public static final String WHATSAPP_IMPORT_CHECKPOINT = "pref_whatsapp_import_checkpoint";
   // who can add you to groups
   public static final String WHO_CAN_ADD_YOU_TO_GROUPS = "pref_who_can_add_you_to_groups";
   //---------------------------------------------------------------------------
@@ -227,6 +239,9 @@ public class TextSecurePreferences {
                                                               // JW: added boolean options
                                                               BACKUP_STORE_ZIPFILE_PREF,
                                                               BACKUP_STORE_ZIPFILE_PLAIN_PREF,
+                                                              BACKUP_PLAIN_COMPACT_PREF,
+                                                              BACKUP_RAW_INCREMENTAL_PREF,
+                                                              BACKUP_PLAIN_BINARY_PREF,
                                                               KEEP_VIEW_ONCE_MESSAGES,
                                                               IGNORE_REMOTE_DELETE,
                                                               DELETE_MEDIA_ONLY};
@@ -240,7 +255,8 @@ public class TextSecurePreferences {
                                                              MESSAGE_BODY_TEXT_SIZE_PREF,
                                                              // JW: added String options
                                                              GOOGLE_MAP_TYPE,
-                                                             WHO_CAN_ADD_YOU_TO_GROUPS};
+                                                             WHO_CAN_ADD_YOU_TO_GROUPS,
+                                                             BACKUP_PLAIN_COMPRESSION_PREF};
 
   private static final String[] stringSetPreferencesToBackup = {MEDIA_DOWNLOAD_MOBILE_PREF,
                                                                 MEDIA_DOWNLOAD_WIFI_PREF,
@@ -1182,6 +1198,38 @@ public class TextSecurePreferences {
     setBooleanPreference(context, BACKUP_STORE_ZIPFILE_PLAIN_PREF, value);
   }
 
+  public static boolean isPlainBackupCompact(Context context) {
+    return getBooleanPreference(context, BACKUP_PLAIN_COMPACT_PREF, false);
+  }
+
+  public static void setPlainBackupCompact(Context context, boolean value) {
+    setBooleanPreference(context, BACKUP_PLAIN_COMPACT_PREF, value);
+  }
+
+  public static boolean isRawBackupIncremental(Context context) {
+    return getBooleanPreference(context, BACKUP_RAW_INCREMENTAL_PREF, false);
+  }
+
+  public static void setRawBackupIncremental(Context context, boolean value) {
+    setBooleanPreference(context, BACKUP_RAW_INCREMENTAL_PREF, value);
+  }
+
+  public static String getPlainBackupCompression(Context context) {
+    return getStringPreference(context, BACKUP_PLAIN_COMPRESSION_PREF, "maximum");
+  }
+
+  public static void setPlainBackupCompression(Context context, String value) {
+    setStringPreference(context, BACKUP_PLAIN_COMPRESSION_PREF, value);
+  }
+
+  public static boolean isPlainBackupBinary(Context context) {
+    return getBooleanPreference(context, BACKUP_PLAIN_BINARY_PREF, false);
+  }
+
+  public static void setPlainBackupBinary(Context context, boolean value) {
+    setBooleanPreference(context, BACKUP_PLAIN_BINARY_PREF, value);
+  }
+
   public static boolean isKeepViewOnceMessages(Context context) {
     return getBooleanPreference(context, KEEP_VIEW_ONCE_MESSAGES, false);
   }
@@ -0,0 +1,201 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class BinaryBackupTest {
+
+  private static final long SELF = 1;
+
+  @Test
+  public void givenGeneratedMessages_whenIWriteAndReadThem_thenIExpectTheSameMessages() throws IOException {
+    List<XmlBackup.XmlBackupItem> items = PlaintextBackupDataset.generate(5_000, 100, SELF, 7);
+
+    BinaryBackup backup = new BinaryBackup(new ByteArrayInputStream(write(items)));
+
+    assertEquals(items.size(), backup.getCount());
+    assertItemsEqual(items, readAll(backup));
+  }
+
+  @Test
+  public void givenSpecialText_whenIWriteAndReadIt_thenIExpectItUnchanged() throws IOException {
+    List<XmlBackup.XmlBackupItem> items = Arrays.asList(item("+15555550100", "Tom & Jerry <b>\"quoted\"</b> it's"),
+                                                        item("+15555550100", "\uD83D\uDE00 caf\u00e9 \u00fcber \u4e2d"),
+                                                        item("+15555550101", "line\nbreak\ttab\r\n"),
+                                                        item("+15555550101", ""),
+                                                        item("+15555550102", null));
+
+    assertItemsEqual(items, readAll(new BinaryBackup(new ByteArrayInputStream(write(items)))));
+  }
+
+  @Test
+  public void givenNullFields_whenIWriteAndReadThem_thenIExpectNull() throws IOException {
+    XmlBackup.XmlBackupItem item = new XmlBackup.XmlBackupItem(0, null, null, 0, 1, null, null, null, 0, 0, null, 0);
+
+    XmlBackup.XmlBackupItem read = readAll(new BinaryBackup(new ByteArrayInputStream(write(Collections.singletonList(item))))).get(0);
+
+    assertNull(read.getAddress());
+    assertNull(read.getContactName());
+    assertNull(read.getSubject());
+    assertNull(read.getBody());
+    assertNull(read.getServiceCenter());
+    assertNull(read.getTransport());
+  }
+
+  @Test
+  public void givenMoreAddressesThanTheDictionaryHolds_whenIWriteAndReadThem_thenIExpectTheSameMessages() throws IOException {
+    List<XmlBackup.XmlBackupItem> items = new ArrayList<>();
+    for (int i = 0; i < 70_000; i++) {
+      items.add(item("+1555" + i, "body " + i));
+    }
+
+    assertItemsEqual(items, readAll(new BinaryBackup(new ByteArrayInputStream(write(items)))));
+  }
+
+  @Test
+  public void givenMalformedUtf8_whenIRead_thenIExpectReplacementCharacters() throws IOException {
+    byte[] backup = write(Collections.singletonList(item("+15555550100", "a__b")));
+
+    for (int i = 0; i < backup.length - 1; i++) {
+      if (backup[i] == '_' && backup[i + 1] == '_') {
+        backup[i]     = (byte) 0xc3;
+        backup[i + 1] = (byte) 0xff;
+      }
+    }
+
+    assertEquals("a\uFFFD\uFFFDb", readAll(new BinaryBackup(new ByteArrayInputStream(backup))).get(0).getBody());
+  }
+
+  @Test
+  public void givenAnUnknownRecord_whenIRead_thenIExpectItSkipped() throws IOException {
+    List<XmlBackup.XmlBackupItem> items  = Collections.singletonList(item("+15555550100", "hello"));
+    byte[]                        backup = write(items);
+    // Magic, version and count of one message take 6 bytes
+    byte[]                        record = { 9, 3, 1, 2, 3 };
+
+    byte[] extended = new byte[backup.length + record.length];
+    System.arraycopy(backup, 0, extended, 0, 6);
+    System.arraycopy(record, 0, extended, 6, record.length);
+    System.arraycopy(backup, 6, extended, 6 + record.length, backup.length - 6);
+
+    assertItemsEqual(items, readAll(new BinaryBackup(new ByteArrayInputStream(extended))));
+  }
+
+  @Test
+  public void givenATruncatedBackup_whenIRead_thenIExpectAnException() throws IOException {
+    byte[] backup = write(PlaintextBackupDataset.generate(20, 5, SELF, 8));
+
+    for (int length = 0; length < backup.length; length++) {
+      try {
+        readAll(new BinaryBackup(new ByteArrayInputStream(Arrays.copyOf(backup, length))));
+        fail("Read a backup truncated to " + length + " of " + backup.length + " bytes");
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void givenAnUnfinishedBackup_whenIRead_thenIExpectAnException() throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    BinaryBackup.Writer   writer = new BinaryBackup.Writer(out, 2);
+
+    writer.writeItem(item("+15555550100", "hello"));
+    writer.writeItem(item("+15555550100", "world"));
+    writer.close();
+
+    readAll(new BinaryBackup(new ByteArrayInputStream(out.toByteArray())));
+  }
+
+  @Test(expected = IOException.class)
+  public void givenAnEndRecordWithAnotherCount_whenIRead_thenIExpectAnException() throws IOException {
+    byte[] backup = write(Arrays.asList(item("+15555550100", "hello"), item("+15555550100", "world")));
+
+    // The end record is the tag, a length of one and the count
+    backup[backup.length - 1] = 3;
+
+    readAll(new BinaryBackup(new ByteArrayInputStream(backup)));
+  }
+
+  @Test(expected = IOException.class)
+  public void givenAnXmlBackup_whenIReadItAsBinary_thenIExpectAnException() throws IOException {
+    new BinaryBackup(new ByteArrayInputStream("<?xml version=\"1.0\"?><smses count=\"0\"></smses>".getBytes()));
+  }
+
+  @Test
+  public void givenABackup_whenICheckTheMagic_thenIExpectTheFormatWithoutConsumingIt() throws IOException {
+    byte[]      binary = write(Collections.singletonList(item("+15555550100", "hello")));
+    InputStream in     = new BufferedInputStream(new ByteArrayInputStream(binary));
+
+    assertTrue(BinaryBackup.hasMagic(in));
+    assertEquals(1, readAll(new BinaryBackup(in)).size());
+
+    assertFalse(BinaryBackup.hasMagic(new BufferedInputStream(new ByteArrayInputStream("<?xml".getBytes()))));
+    assertFalse(BinaryBackup.hasMagic(new BufferedInputStream(new ByteArrayInputStream(new byte[0]))));
+  }
+
+  private static XmlBackup.XmlBackupItem item(String address, String body) {
+    return new XmlBackup.XmlBackupItem(0, address, "Contact", 1_500_000_000_000L, 1, null, body, null, 1, -1, "SMS", SELF);
+  }
+
+  private static byte[] write(List<XmlBackup.XmlBackupItem> items) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    BinaryBackup.Writer   writer = new BinaryBackup.Writer(out, items.size());
+
+    try {
+      for (XmlBackup.XmlBackupItem item : items) {
+        writer.writeItem(item);
+      }
+      writer.finish();
+    } finally {
+      writer.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static List<XmlBackup.XmlBackupItem> readAll(BinaryBackup backup) throws IOException {
+    List<XmlBackup.XmlBackupItem> items = new ArrayList<>();
+    XmlBackup.XmlBackupItem       item;
+
+    while ((item = backup.getNext()) != null) {
+      items.add(item);
+    }
+    return items;
+  }
+
+  private static void assertItemsEqual(List<XmlBackup.XmlBackupItem> expected, List<XmlBackup.XmlBackupItem> actual) {
+    assertEquals(expected.size(), actual.size());
+
+    for (int i = 0; i < expected.size(); i++) {
+      XmlBackup.XmlBackupItem e = expected.get(i);
+      XmlBackup.XmlBackupItem a = actual.get(i);
+
+      assertEquals(e.getProtocol(), a.getProtocol());
+      assertEquals(e.getAddress(), a.getAddress());
+      assertEquals(e.getContactName(), a.getContactName());
+      assertEquals(e.getDate(), a.getDate());
+      assertEquals(e.getType(), a.getType());
+      assertEquals(e.getSubject(), a.getSubject());
+      assertEquals(e.getBody(), a.getBody());
+      assertEquals(e.getServiceCenter(), a.getServiceCenter());
+      assertEquals(e.getRead(), a.getRead());
+      assertEquals(e.getStatus(), a.getStatus());
+      assertEquals(e.getTransport(), a.getTransport());
+      assertEquals(e.getRecipient(), a.getRecipient());
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class MappedXmlBackupTest {
+
+  private static final long SELF = 1;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void givenGeneratedMessages_whenIReadThemMapped_thenIExpectWhatTheXmlParserReads() throws Exception {
+    List<XmlBackup.XmlBackupItem> items = PlaintextBackupDataset.generate(2_000, 50, SELF, 11);
+
+    for (boolean compact : new boolean[] { false, true }) {
+      File file = write(items, compact);
+
+      MappedXmlBackup mapped = new MappedXmlBackup(file);
+      assertItemsEqual(items, readAll(mapped));
+      assertEquals(items.size(), mapped.getCount());
+      assertItemsEqual(readAllParsed(file), readAll(new MappedXmlBackup(file)));
+    }
+  }
+
+  @Test
+  public void givenSpecialText_whenIReadItMapped_thenIExpectItUnchanged() throws Exception {
+    List<XmlBackup.XmlBackupItem> items = Arrays.asList(item("+15555550100", "Tom & Jerry <b>\"quoted\"</b> it's"),
+                                                        item("+15555550100", "\uD83D\uDE00 caf\u00e9 \u00fcber \u4e2d"),
+                                                        item("+15555550101", "line\nbreak\ttab\r\n"),
+                                                        item("+15555550102", ""));
+    File file = write(items, true);
+
+    assertItemsEqual(items, readAll(new MappedXmlBackup(file)));
+    assertItemsEqual(readAllParsed(file), readAll(new MappedXmlBackup(file)));
+  }
+
+  @Test
+  public void givenMalformedUtf8_whenIReadItMapped_thenIExpectReplacementCharacters() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write("<smses count=\"1\"><sms address=\"+15555550100\" date=\"1\" type=\"1\" body=\"a".getBytes(StandardCharsets.US_ASCII));
+    out.write(new byte[] { (byte) 0xc3, '(', 'b', (byte) 0xff, (byte) 0xe2, (byte) 0x82 });
+    out.write("\" /></smses>".getBytes(StandardCharsets.US_ASCII));
+
+    List<XmlBackup.XmlBackupItem> items = readAll(new MappedXmlBackup(write(out.toByteArray())));
+
+    assertEquals(1, items.size());
+    assertEquals("a\uFFFD(b\uFFFD\uFFFD", items.get(0).getBody());
+  }
+
+  @Test
+  public void givenUnknownElementsAndAttributes_whenIReadItMapped_thenIExpectThemSkipped() throws Exception {
+    String xml = "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>\n" +
+                 "<!-- From another backup app -->\n" +
+                 "<smses count=\"2\" backup_set=\"5d2c\" backup_date=\"1500000000000\">\n" +
+                 "  <meta key=\"value\" />\n" +
+                 "  <sms protocol=\"0\" address=\"+15555550100\" date=\"1500000000000\" type=\"1\" subject=\"null\" body=\"hi &amp; bye\"" +
+                 " toa=\"null\" sc_toa=\"null\" service_center=\"null\" read=\"1\" status=\"-1\" locked=\"0\" date_sent=\"0\"" +
+                 " sub_id=\"-1\" readable_date=\"Jul 14, 2017\" contact_name=\"(Unknown)\" />\n" +
+                 "  <mms address=\"+15555550101\"><parts><part seq=\"0\" text=\"ignored\" /></parts></mms>\n" +
+                 "  <sms address='+15555550102' date='1500000000001' type='2' body='there' torecipient='7'></sms>\n" +
+                 "</smses>\n";
+    File file = write(xml.getBytes(StandardCharsets.UTF_8));
+
+    MappedXmlBackup               mapped = new MappedXmlBackup(file);
+    List<XmlBackup.XmlBackupItem> items  = readAll(mapped);
+
+    assertEquals(2, mapped.getCount());
+    assertEquals(2, items.size());
+    assertEquals("hi & bye", items.get(0).getBody());
+    assertEquals("+15555550102", items.get(1).getAddress());
+    assertEquals(7, items.get(1).getRecipient());
+    assertItemsEqual(readAllParsed(file), items);
+  }
+
+  @Test
+  public void givenATruncatedBackup_whenIReadItMapped_thenIExpectAnException() throws Exception {
+    byte[] backup = readBytes(write(PlaintextBackupDataset.generate(3, 2, SELF, 12), false));
+
+    for (int length = 0; length < backup.length; length++) {
+      try {
+        readAll(new MappedXmlBackup(write(Arrays.copyOf(backup, length))));
+        fail("Read a backup truncated to " + length + " of " + backup.length + " bytes");
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void givenAnUnfinishedBackup_whenIReadItMapped_thenIExpectAnException() throws Exception {
+    File             file   = folder.newFile();
+    XmlBackup.Writer writer = new XmlBackup.Writer(new FileOutputStream(file), 2, true);
+
+    writer.writeItem(item("+15555550100", "hello"));
+    writer.writeItem(item("+15555550100", "world"));
+    writer.close();
+
+    readAll(new MappedXmlBackup(file));
+  }
+
+  private static XmlBackup.XmlBackupItem item(String address, String body) {
+    return new XmlBackup.XmlBackupItem(0, address, "Contact", 1_500_000_000_000L, 1, null, body, null, 1, -1, "SMS", SELF);
+  }
+
+  private File write(List<XmlBackup.XmlBackupItem> items, boolean compact) throws IOException {
+    File             file   = folder.newFile();
+    XmlBackup.Writer writer = new XmlBackup.Writer(new FileOutputStream(file), items.size(), compact);
+
+    try {
+      for (XmlBackup.XmlBackupItem item : items) {
+        writer.writeItem(item);
+      }
+      writer.finish();
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  private File write(byte[] bytes) throws IOException {
+    File file = folder.newFile();
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(bytes);
+    }
+    return file;
+  }
+
+  private static byte[] readBytes(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    try (InputStream in = new FileInputStream(file)) {
+      int read = 0;
+      while (read < bytes.length) {
+        read += in.read(bytes, read, bytes.length - read);
+      }
+    }
+    return bytes;
+  }
+
+  private static List<XmlBackup.XmlBackupItem> readAll(PlaintextBackupReader backup) throws Exception {
+    List<XmlBackup.XmlBackupItem> items = new ArrayList<>();
+    XmlBackup.XmlBackupItem       item;
+
+    while ((item = backup.getNext()) != null) {
+      items.add(item);
+    }
+    return items;
+  }
+
+  private static List<XmlBackup.XmlBackupItem> readAllParsed(File file) throws Exception {
+    try (InputStream in = new FileInputStream(file)) {
+      return readAll(new XmlBackup(in));
+    }
+  }
+
+  // The mapped reader only reads the attributes the restore uses
+  private static void assertItemsEqual(List<XmlBackup.XmlBackupItem> expected, List<XmlBackup.XmlBackupItem> actual) {
+    assertEquals(expected.size(), actual.size());
+
+    for (int i = 0; i < expected.size(); i++) {
+      XmlBackup.XmlBackupItem e = expected.get(i);
+      XmlBackup.XmlBackupItem a = actual.get(i);
+
+      assertEquals(e.getProtocol(), a.getProtocol());
+      assertEquals(e.getAddress(), a.getAddress());
+      assertEquals(e.getDate(), a.getDate());
+      assertEquals(e.getType(), a.getType());
+      assertEquals(e.getBody(), a.getBody());
+      assertEquals(e.getRead(), a.getRead());
+      assertEquals(e.getStatus(), a.getStatus());
+      assertEquals(e.getRecipient(), a.getRecipient());
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.whatsapp.WaDbGenerator;
+import org.thoughtcrime.securesms.testing.Benchmark;
+import org.thoughtcrime.securesms.util.ParallelFileCopier;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput and allocation benchmarks of the plaintext, WhatsApp and raw backup paths on
+ * generated data. They only run with -Dbenchmark=true, for example
+ *
+ *   ./gradlew :app:testProdGmsWebsiteDebugUnitTest --tests '*PlaintextBackupBenchmark' -Dbenchmark=true -Dbenchmark.messages=1000000
+ *
+ * and append their reports to build/benchmarks/plaintext-backup.jsonl. Allocations are the ones
+ * of the benchmark thread, work done on pools of the code under test is not counted.
+ *
+ * The import into the Signal database needs SQLCipher and is measured by the instrumentation
+ * benchmark PlaintextImportBenchmark.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class PlaintextBackupBenchmark {
+
+  private static final int  MESSAGES  = Integer.getInteger("benchmark.messages", 100_000);
+  private static final int  ADDRESSES = Integer.getInteger("benchmark.addresses", 200);
+  private static final int  FILES     = Integer.getInteger("benchmark.files", 1_000);
+  private static final int  FILE_SIZE = Integer.getInteger("benchmark.fileSize", 64 * 1024);
+  private static final int  WARMUP    = Integer.getInteger("benchmark.warmup", 2);
+  private static final int  ROUNDS    = Integer.getInteger("benchmark.rounds", 5);
+  private static final long SEED      = 42;
+  private static final long SELF      = 1;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Benchmark                     benchmark;
+  private List<XmlBackup.XmlBackupItem> items;
+
+  @Before
+  public void setUp() {
+    assumeTrue("Benchmarks run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+
+    benchmark = new Benchmark("plaintext-backup", WARMUP, ROUNDS, PlaintextBackupBenchmark::threadAllocatedBytes);
+    items     = PlaintextBackupDataset.generate(MESSAGES, ADDRESSES, SELF, SEED);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (benchmark != null) {
+      benchmark.appendReports(new File("build/benchmarks/plaintext-backup.jsonl"));
+    }
+  }
+
+  @Test
+  public void writeItem() throws Exception {
+    benchmark.measure("XmlBackup.Writer.writeItem", items.size(), () -> {
+      writeAll(new XmlBackup.Writer(new NullOutputStream(), items.size(), false));
+    });
+
+    benchmark.measure("XmlBackup.Writer.writeItem compact", items.size(), () -> {
+      writeAll(new XmlBackup.Writer(new NullOutputStream(), items.size(), true));
+    });
+
+    benchmark.measure("BinaryBackup.Writer.writeItem", items.size(), () -> {
+      writeAll(new BinaryBackup.Writer(new NullOutputStream(), items.size()));
+    });
+  }
+
+  @Test
+  public void escaping() throws Exception {
+    benchmark.measure("XmlCharWriter.writeEscaped", items.size(), () -> {
+      try (XmlCharWriter writer = new XmlCharWriter(Channels.newChannel(new NullOutputStream()))) {
+        for (XmlBackup.XmlBackupItem item : items) writer.writeEscaped(item.getBody());
+      }
+    });
+  }
+
+  @Test
+  public void getNext() throws Exception {
+    File xml    = folder.newFile("backup.xml");
+    File binary = folder.newFile("backup.bin");
+
+    writeAll(new XmlBackup.Writer(new FileOutputStream(xml), items.size(), false));
+    writeAll(new BinaryBackup.Writer(new FileOutputStream(binary), items.size()));
+
+    benchmark.measure("XmlBackup.getNext", items.size(), () -> {
+      try (InputStream in = new BufferedInputStream(new FileInputStream(xml))) {
+        assertEquals(items.size(), readAll(new XmlBackup(in)));
+      }
+    });
+
+    benchmark.measure("MappedXmlBackup.getNext", items.size(), () -> {
+      assertEquals(items.size(), readAll(new MappedXmlBackup(xml)));
+    });
+
+    benchmark.measure("BinaryBackup.getNext", items.size(), () -> {
+      try (InputStream in = new FileInputStream(binary)) {
+        assertEquals(items.size(), readAll(new BinaryBackup(in)));
+      }
+    });
+  }
+
+  @Test
+  public void whatsappGetNext() throws Exception {
+    File msgstore = new File(folder.getRoot(), "msgstore.db");
+    WaDbGenerator.builder().messages(MESSAGES).chats(ADDRESSES).contacts(ADDRESSES * 2).seed(SEED).build().generate(msgstore);
+
+    SQLiteDatabase db = SQLiteDatabase.openDatabase(msgstore.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+    try {
+      benchmark.measure("WhatsappBackup.getNext", MESSAGES, () -> {
+        int count = 0;
+        try (WhatsappBackup backup = new WhatsappBackup(db)) {
+          while (backup.getNext() != null) count++;
+        }
+        assertEquals(MESSAGES, count);
+      });
+    } finally {
+      db.close();
+    }
+  }
+
+  @Test
+  public void copyTree() throws Exception {
+    File   source = folder.newFolder("source");
+    File   target = new File(folder.getRoot(), "target");
+    Random random = new Random(SEED);
+    byte[] data   = new byte[FILE_SIZE];
+
+    for (int i = 0; i < FILES; i++) {
+      File file = new File(source, "dir" + (i % 16) + "/file" + i);
+      file.getParentFile().mkdirs();
+      random.nextBytes(data);
+      try (OutputStream out = new FileOutputStream(file)) {
+        out.write(data);
+      }
+    }
+
+    benchmark.measure("ParallelFileCopier.copyTree", FILES, () -> delete(target), () -> {
+      ParallelFileCopier.copyTree(source, target, (path, file) -> true, ImportExportProgress.none());
+    });
+  }
+
+  private void writeAll(PlaintextBackupWriter writer) throws IOException {
+    try {
+      for (XmlBackup.XmlBackupItem item : items) {
+        writer.writeItem(item);
+      }
+      writer.finish();
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static int readAll(PlaintextBackupReader reader) throws Exception {
+    int count = 0;
+    while (reader.getNext() != null) count++;
+    return count;
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) delete(child);
+    }
+    file.delete();
+  }
+
+  private static long threadAllocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+}
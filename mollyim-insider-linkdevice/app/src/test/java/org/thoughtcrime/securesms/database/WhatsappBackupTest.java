@@ -0,0 +1,150 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.whatsapp.WaDbGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class WhatsappBackupTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SQLiteDatabase> databases = new ArrayList<>();
+
+    private File file;
+
+    @After
+    public void tearDown() {
+        for (SQLiteDatabase db : databases) db.close();
+    }
+
+    @Test
+    public void givenAGeneratedMsgstore_whenIReadIt_thenIExpectEveryMessageInIdOrder() throws IOException {
+        WaDbGenerator.Result result = WaDbGenerator.builder().messages(2_000).chats(40).contacts(60).groupRatio(0.3).mediaRatio(0.2).seed(1).build()
+                                                   .generate(newFile());
+        List<WhatsappBackup.WhatsappBackupItem> items = readAll(open(), 0);
+
+        assertEquals(result.getMessages(), items.size());
+
+        int  groupMessages = 0;
+        int  media         = 0;
+        int  captions      = 0;
+        long previousId    = 0;
+        long previousDate  = 0;
+
+        for (WhatsappBackup.WhatsappBackupItem item : items) {
+            assertTrue(item.getWaMessageId() > previousId);
+            assertTrue(item.getDate() > previousDate);
+            previousId   = item.getWaMessageId();
+            previousDate = item.getDate();
+
+            if (item.getGroupName() != null) {
+                assertTrue(item.getGroupName().startsWith("Group "));
+                groupMessages++;
+            }
+            if (item.getAddress() != null) {
+                assertTrue(item.getAddress(), item.getAddress().startsWith("+316"));
+            }
+
+            if (item.getMediaWaType() != 0) {
+                assertNotNull(item.getMediaFilePath());
+                assertNotNull(item.getMediaMimeType());
+                assertNull(item.getBody());
+                media++;
+                if (item.getMediaCaption() != null) captions++;
+            } else {
+                assertNotNull(item.getBody());
+                assertNull(item.getMediaFilePath());
+            }
+        }
+
+        assertTrue(result.getGroups() > 0);
+        assertTrue(groupMessages > 0);
+        assertEquals(result.getMedia(), media);
+        assertEquals(result.getCaptions(), captions);
+    }
+
+    @Test
+    public void givenALegacyMsgstore_whenIReadIt_thenIExpectMediaWithoutFiles() throws IOException {
+        WaDbGenerator.Result result = WaDbGenerator.builder().messages(500).mediaRatio(0.5).legacySchema().seed(2).build().generate(newFile());
+        List<WhatsappBackup.WhatsappBackupItem> items = readAll(open(), 0);
+
+        int media = 0;
+        for (WhatsappBackup.WhatsappBackupItem item : items) {
+            assertNull(item.getMediaFilePath());
+            if (item.getMediaWaType() != 0) media++;
+        }
+
+        assertEquals(result.getMessages(), items.size());
+        assertEquals(result.getMedia(), media);
+    }
+
+    @Test
+    public void givenAnId_whenIReadAfterIt_thenIExpectOnlyTheLaterMessages() throws IOException {
+        WaDbGenerator.builder().messages(1_000).seed(3).build().generate(newFile());
+        List<WhatsappBackup.WhatsappBackupItem> items = readAll(open(), 600);
+
+        assertEquals(400, items.size());
+        assertEquals(601, items.get(0).getWaMessageId());
+    }
+
+    @Test
+    public void givenTheSameSeed_whenIGenerateTwice_thenIExpectTheSameMessages() throws IOException {
+        WaDbGenerator.builder().messages(300).seed(4).build().generate(newFile());
+        List<WhatsappBackup.WhatsappBackupItem> first = readAll(open(), 0);
+
+        WaDbGenerator.builder().messages(300).seed(4).build().generate(newFile());
+        List<WhatsappBackup.WhatsappBackupItem> second = readAll(open(), 0);
+
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).getAddress(), second.get(i).getAddress());
+            assertEquals(first.get(i).getDate(), second.get(i).getDate());
+            assertEquals(first.get(i).getBody(), second.get(i).getBody());
+            assertEquals(first.get(i).getMediaFilePath(), second.get(i).getMediaFilePath());
+        }
+    }
+
+    private File newFile() throws IOException {
+        file = folder.newFile();
+        return file;
+    }
+
+    private SQLiteDatabase open() {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+        databases.add(db);
+        return db;
+    }
+
+    private static List<WhatsappBackup.WhatsappBackupItem> readAll(SQLiteDatabase db, long afterId) {
+        List<WhatsappBackup.WhatsappBackupItem> items = new ArrayList<>();
+
+        try (WhatsappBackup backup = new WhatsappBackup(db, afterId)) {
+            WhatsappBackup.WhatsappBackupItem item;
+            while ((item = backup.getNext()) != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+}
@@ -0,0 +1,61 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic plaintext backup messages for tests and benchmarks.
+ *
+ * The messages only depend on the settings and the seed. Like real backups a few addresses get
+ * most of the messages, and the bodies mix plain words with characters the XML has to escape,
+ * line breaks and characters outside the BMP.
+ */
+public final class PlaintextBackupDataset {
+
+  private static final long FIRST_MESSAGE = 1_500_000_000_000L;
+
+  private static final String[] WORDS = { "hello", "ok", "see", "you", "tomorrow", "at", "the", "station", "thanks", "for",
+                                          "dinner", "when", "are", "we", "meeting", "yes", "no", "maybe", "later", "call",
+                                          "Tom & Jerry", "<b>", "\"quoted\"", "it's", "caf\u00e9", "\uD83D\uDE00", "\n", "\u00fcber" };
+
+  private PlaintextBackupDataset() {}
+
+  /**
+   * @param addresses number of distinct addresses the messages are spread over.
+   * @param self      recipient id stored as the receiver of every message.
+   */
+  public static @NonNull List<XmlBackup.XmlBackupItem> generate(int messages, int addresses, long self, long seed) {
+    Random                        random = new Random(seed);
+    List<XmlBackup.XmlBackupItem> items  = new ArrayList<>(messages);
+    long                          date   = FIRST_MESSAGE;
+
+    for (int i = 0; i < messages; i++) {
+      // Squaring skews the choice towards the first addresses
+      double skew     = random.nextDouble();
+      int    index    = (int) (skew * skew * addresses);
+      String address  = String.format(Locale.US, "+1555%07d", index);
+      int    type     = random.nextDouble() < 0.6 ? 1 : 2;
+
+      date += 1 + random.nextInt(120_000);
+
+      items.add(new XmlBackup.XmlBackupItem(0, address, "Contact " + index, date, type, null, text(random), null, 1, -1,
+                                            type == 1 ? "SMS" : "Data", self));
+    }
+    return items;
+  }
+
+  private static String text(Random random) {
+    StringBuilder builder = new StringBuilder();
+    int           words   = 1 + random.nextInt(20);
+
+    for (int i = 0; i < words; i++) {
+      if (i > 0) builder.append(' ');
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,412 @@
+package org.thoughtcrime.securesms.database.whatsapp;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates a synthetic WhatsApp msgstore.db with the tables the importer reads: jid, chat,
+ * messages and message_media.
+ *
+ * The content only depends on the settings and the seed, so the same settings always give the
+ * same database. Conversations are skewed like real ones, a few chats get most of the messages.
+ *
+ * The rows are written through a {@link Sink}. {@link #forDatabase} writes to an Android
+ * database, which works in instrumentation tests and in Robolectric tests on the JVM.
+ */
+public final class WaDbGenerator {
+
+    public interface Sink {
+        void execSQL(String sql);
+
+        void insert(String sql, Object[] args);
+
+        void beginBatch();
+
+        void endBatch();
+    }
+
+    private static final int    BATCH_SIZE    = 10_000;
+    private static final long   FIRST_MESSAGE = 1_500_000_000_000L;
+    private static final String USER_SERVER   = "s.whatsapp.net";
+    private static final String GROUP_SERVER  = "g.us";
+
+    private static final String[] WORDS = { "hello", "ok", "see", "you", "tomorrow", "at", "the", "station", "thanks", "for",
+                                            "dinner", "when", "are", "we", "meeting", "yes", "no", "maybe", "later", "call",
+                                            "me", "back", "please", "great", "idea", "lol", "on", "my", "way", "home" };
+
+    // media_wa_type, mime type, extension and directory of the media kinds the importer handles
+    private static final Object[][] MEDIA_KINDS = { { 1, "image/jpeg", "jpg", "Media/WhatsApp Images/" },
+                                                    { 3, "video/mp4", "mp4", "Media/WhatsApp Video/" },
+                                                    { 2, "audio/ogg; codecs=opus", "opus", "Media/WhatsApp Voice Notes/" } };
+
+    private final int     messages;
+    private final int     contacts;
+    private final int     chats;
+    private final double  groupRatio;
+    private final double  mediaRatio;
+    private final double  captionRatio;
+    private final boolean withMediaTable;
+    private final File    mediaRoot;
+    private final int     mediaFileSize;
+    private final long    seed;
+
+    private WaDbGenerator(Builder builder) {
+        this.messages       = builder.messages;
+        // Every one-to-one chat needs a contact of its own
+        this.contacts       = Math.max(builder.contacts, builder.chats);
+        this.chats          = builder.chats;
+        this.groupRatio     = builder.groupRatio;
+        this.mediaRatio     = builder.mediaRatio;
+        this.captionRatio   = builder.captionRatio;
+        this.withMediaTable = builder.withMediaTable;
+        this.mediaRoot      = builder.mediaRoot;
+        this.mediaFileSize  = builder.mediaFileSize;
+        this.seed           = builder.seed;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a new database file, an existing file is replaced.
+     */
+    public Result generate(File databaseFile) throws IOException {
+        if (databaseFile.exists() && !databaseFile.delete()) {
+            throw new IOException("Could not replace " + databaseFile.getAbsolutePath());
+        }
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+        try {
+            return generate(forDatabase(db));
+        } finally {
+            db.close();
+        }
+    }
+
+    public Result generate(Sink sink) throws IOException {
+        Random random = new Random(seed);
+
+        createSchema(sink);
+        sink.beginBatch();
+
+        List<String> contactJids = new ArrayList<>(contacts);
+        for (int i = 0; i < contacts; i++) {
+            String user = String.format(Locale.US, "316%08d", i);
+            contactJids.add(user + "@" + USER_SERVER);
+            sink.insert("INSERT INTO jid (_id, user, server, type, raw_string) VALUES (?, ?, ?, 0, ?)",
+                        new Object[] { (long) i + 1, user, USER_SERVER, contactJids.get(i) });
+        }
+
+        List<Chat> chatList = new ArrayList<>(chats);
+        int        groups   = 0;
+        for (int i = 0; i < chats; i++) {
+            boolean group = random.nextDouble() < groupRatio;
+            Chat    chat;
+
+            if (group) {
+                String       user    = String.format(Locale.US, "316%08d-%d", random.nextInt(contacts), 1_400_000_000 + i);
+                List<String> members = new ArrayList<>();
+                int          size    = Math.min(contacts, 3 + random.nextInt(18));
+                for (int m = 0; m < size; m++) {
+                    members.add(contactJids.get(random.nextInt(contacts)));
+                }
+
+                long jidId = contacts + groups + 1;
+                chat = new Chat(i + 1, user + "@" + GROUP_SERVER, members);
+                sink.insert("INSERT INTO jid (_id, user, server, type, raw_string) VALUES (?, ?, ?, 1, ?)",
+                            new Object[] { jidId, user, GROUP_SERVER, chat.jid });
+                sink.insert("INSERT INTO chat (_id, jid_row_id, subject, created_timestamp) VALUES (?, ?, ?, ?)",
+                            new Object[] { chat.id, jidId, "Group " + (groups + 1), FIRST_MESSAGE });
+                groups++;
+            } else {
+                int contact = i - groups;
+                chat = new Chat(i + 1, contactJids.get(contact), null);
+                sink.insert("INSERT INTO chat (_id, jid_row_id, subject, created_timestamp) VALUES (?, ?, NULL, ?)",
+                            new Object[] { chat.id, (long) contact + 1, FIRST_MESSAGE });
+            }
+            chatList.add(chat);
+        }
+
+        int  media     = 0;
+        int  captions  = 0;
+        long timestamp = FIRST_MESSAGE;
+
+        for (int i = 0; i < messages; i++) {
+            long    id       = i + 1;
+            // Squaring skews the choice towards the first chats
+            double  skew     = random.nextDouble();
+            Chat    chat     = chatList.get((int) (skew * skew * chatList.size()));
+            boolean fromMe   = random.nextDouble() < 0.4;
+            String  resource = chat.members != null && !fromMe ? chat.members.get(random.nextInt(chat.members.size())) : null;
+
+            timestamp += 1 + random.nextInt(120_000);
+
+            if (random.nextDouble() < mediaRatio) {
+                Object[] kind    = MEDIA_KINDS[random.nextInt(MEDIA_KINDS.length)];
+                boolean  voice   = (int) kind[0] == 2;
+                String   caption = !voice && random.nextDouble() < captionRatio ? text(random) : null;
+                String   path    = String.format(Locale.US, "%sWA-%08d.%s", kind[3], id, kind[2]);
+
+                sink.insert("INSERT INTO messages (_id, key_remote_jid, key_from_me, key_id, status, data, timestamp, media_wa_type, " +
+                            "media_mime_type, media_size, media_caption, remote_resource, received_timestamp) VALUES (?, ?, ?, ?, 13, NULL, ?, ?, ?, ?, ?, ?, ?)",
+                            new Object[] { id, chat.jid, fromMe ? 1L : 0L, keyId(id), timestamp, String.valueOf(kind[0]), kind[1],
+                                           (long) mediaFileSize, caption, resource, timestamp });
+                if (withMediaTable) {
+                    sink.insert("INSERT INTO message_media (message_row_id, chat_row_id, file_path, file_size, mime_type, media_name) VALUES (?, ?, ?, ?, ?, ?)",
+                                new Object[] { id, chat.id, path, (long) mediaFileSize, kind[1], path.substring(path.lastIndexOf('/') + 1) });
+                }
+                if (mediaRoot != null) {
+                    writeMediaFile(new File(mediaRoot, path), random);
+                }
+
+                media++;
+                if (caption != null) captions++;
+            } else {
+                sink.insert("INSERT INTO messages (_id, key_remote_jid, key_from_me, key_id, status, data, timestamp, media_wa_type, " +
+                            "remote_resource, received_timestamp) VALUES (?, ?, ?, ?, 13, ?, ?, '0', ?, ?)",
+                            new Object[] { id, chat.jid, fromMe ? 1L : 0L, keyId(id), text(random), timestamp, resource, timestamp });
+            }
+
+            if (id % BATCH_SIZE == 0) {
+                sink.endBatch();
+                sink.beginBatch();
+            }
+        }
+        sink.endBatch();
+
+        return new Result(messages, chats, groups, media, captions);
+    }
+
+    private void createSchema(Sink sink) {
+        sink.execSQL("CREATE TABLE jid (_id INTEGER PRIMARY KEY AUTOINCREMENT, user TEXT NOT NULL, server TEXT NOT NULL, agent INTEGER, " +
+                     "device INTEGER, type INTEGER, raw_string TEXT)");
+        sink.execSQL("CREATE TABLE chat (_id INTEGER PRIMARY KEY AUTOINCREMENT, jid_row_id INTEGER UNIQUE, hidden INTEGER, subject TEXT, " +
+                     "created_timestamp INTEGER, archived INTEGER, sort_timestamp INTEGER)");
+        sink.execSQL("CREATE TABLE messages (_id INTEGER PRIMARY KEY AUTOINCREMENT, key_remote_jid TEXT NOT NULL, key_from_me INTEGER, " +
+                     "key_id TEXT NOT NULL, status INTEGER, needs_push INTEGER, data TEXT, timestamp INTEGER, media_url TEXT, " +
+                     "media_mime_type TEXT, media_wa_type TEXT, media_size INTEGER, media_name TEXT, media_caption TEXT, " +
+                     "media_hash TEXT, media_duration INTEGER, origin INTEGER, latitude REAL, longitude REAL, remote_resource TEXT, " +
+                     "received_timestamp INTEGER, send_timestamp INTEGER, starred INTEGER, quoted_row_id INTEGER)");
+        sink.execSQL("CREATE INDEX messages_key_index ON messages (key_remote_jid, key_from_me, key_id)");
+        if (withMediaTable) {
+            sink.execSQL("CREATE TABLE message_media (message_row_id INTEGER PRIMARY KEY, chat_row_id INTEGER, file_path TEXT, " +
+                         "file_size INTEGER, mime_type TEXT, media_name TEXT, media_duration INTEGER, media_key BLOB)");
+        }
+    }
+
+    private static String keyId(long id) {
+        return String.format(Locale.US, "3EB0%016X", id * 0x9E3779B97F4A7C15L);
+    }
+
+    private static String text(Random random) {
+        StringBuilder builder = new StringBuilder();
+        int           words   = 1 + random.nextInt(20);
+
+        for (int i = 0; i < words; i++) {
+            if (i > 0) builder.append(' ');
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+
+    private void writeMediaFile(File file, Random random) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent.getAbsolutePath());
+        }
+
+        byte[] data = new byte[mediaFileSize];
+        random.nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Writes through compiled statements in transactions of {@link #BATCH_SIZE} rows.
+     */
+    public static Sink forDatabase(SQLiteDatabase db) {
+        return new Sink() {
+            private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+            @Override
+            public void execSQL(String sql) {
+                db.execSQL(sql);
+            }
+
+            @Override
+            public void insert(String sql, Object[] args) {
+                SQLiteStatement statement = statements.get(sql);
+                if (statement == null) {
+                    statement = db.compileStatement(sql);
+                    statements.put(sql, statement);
+                }
+
+                statement.clearBindings();
+                for (int i = 0; i < args.length; i++) {
+                    Object arg = args[i];
+                    if      (arg == null)         statement.bindNull(i + 1);
+                    else if (arg instanceof Long) statement.bindLong(i + 1, (Long) arg);
+                    else                          statement.bindString(i + 1, arg.toString());
+                }
+                statement.executeInsert();
+            }
+
+            @Override
+            public void beginBatch() {
+                db.beginTransaction();
+            }
+
+            @Override
+            public void endBatch() {
+                db.setTransactionSuccessful();
+                db.endTransaction();
+            }
+        };
+    }
+
+    private static final class Chat {
+        private final long         id;
+        private final String       jid;
+        private final List<String> members;
+
+        private Chat(long id, String jid, List<String> members) {
+            this.id      = id;
+            this.jid     = jid;
+            this.members = members;
+        }
+    }
+
+    public static final class Result {
+        private final int messages;
+        private final int chats;
+        private final int groups;
+        private final int media;
+        private final int captions;
+
+        private Result(int messages, int chats, int groups, int media, int captions) {
+            this.messages = messages;
+            this.chats    = chats;
+            this.groups   = groups;
+            this.media    = media;
+            this.captions = captions;
+        }
+
+        public int getMessages() {
+            return messages;
+        }
+
+        public int getChats() {
+            return chats;
+        }
+
+        public int getGroups() {
+            return groups;
+        }
+
+        public int getMedia() {
+            return media;
+        }
+
+        public int getCaptions() {
+            return captions;
+        }
+
+        @Override
+        public String toString() {
+            return messages + " messages in " + chats + " chats (" + groups + " groups), " + media + " media, " + captions + " captions";
+        }
+    }
+
+    public static final class Builder {
+        private int     messages       = 10_000;
+        private int     contacts       = 200;
+        private int     chats          = 100;
+        private double  groupRatio     = 0.2;
+        private double  mediaRatio     = 0.1;
+        private double  captionRatio   = 0.3;
+        private boolean withMediaTable = true;
+        private File    mediaRoot;
+        private int     mediaFileSize  = 16 * 1024;
+        private long    seed           = 42;
+
+        private Builder() {}
+
+        public Builder messages(int messages) {
+            this.messages = messages;
+            return this;
+        }
+
+        public Builder contacts(int contacts) {
+            this.contacts = Math.max(1, contacts);
+            return this;
+        }
+
+        public Builder chats(int chats) {
+            this.chats = Math.max(1, chats);
+            return this;
+        }
+
+        /**
+         * @param groupRatio fraction of the chats that are groups.
+         */
+        public Builder groupRatio(double groupRatio) {
+            this.groupRatio = groupRatio;
+            return this;
+        }
+
+        /**
+         * @param mediaRatio fraction of the messages that are images, videos or voice notes.
+         */
+        public Builder mediaRatio(double mediaRatio) {
+            this.mediaRatio = mediaRatio;
+            return this;
+        }
+
+        /**
+         * @param captionRatio fraction of the images and videos that have a caption.
+         */
+        public Builder captionRatio(double captionRatio) {
+            this.captionRatio = captionRatio;
+            return this;
+        }
+
+        /**
+         * Leaves out the message_media table, like msgstore databases of older WhatsApp versions.
+         */
+        public Builder legacySchema() {
+            this.withMediaTable = false;
+            return this;
+        }
+
+        /**
+         * Also writes a file for every media message below mediaRoot, which takes the place of the
+         * WhatsApp directory on external storage.
+         */
+        public Builder mediaFiles(File mediaRoot, int mediaFileSize) {
+            this.mediaRoot     = mediaRoot;
+            this.mediaFileSize = mediaFileSize;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public WaDbGenerator build() {
+            return new WaDbGenerator(this);
+        }
+    }
+}
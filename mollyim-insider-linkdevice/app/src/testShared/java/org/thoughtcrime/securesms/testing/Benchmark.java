@@ -0,0 +1,119 @@
+package org.thoughtcrime.securesms.testing;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Small benchmark harness for the import and export paths, shared by the JVM and the
+ * instrumentation benchmarks.
+ *
+ * Every case runs a few warmup rounds and then the measured rounds, and is reported as one line of
+ * JSON with the items per round, the median and fastest round, the throughput and the bytes
+ * allocated per item. Allocations are counted by the {@link AllocationCounter} of the platform.
+ */
+public final class Benchmark {
+
+  public static final String REPORT_PREFIX = "BENCHMARK ";
+
+  public interface Body {
+    void run() throws Exception;
+  }
+
+  public interface AllocationCounter {
+    /**
+     * @return bytes allocated so far, or -1 if the platform does not count them.
+     */
+    long allocatedBytes();
+  }
+
+  private final String            suite;
+  private final int               warmupRounds;
+  private final int               rounds;
+  private final AllocationCounter allocations;
+  private final List<String>      reports = new ArrayList<>();
+
+  public Benchmark(@NonNull String suite, int warmupRounds, int rounds, @NonNull AllocationCounter allocations) {
+    this.suite        = suite;
+    this.warmupRounds = warmupRounds;
+    this.rounds       = Math.max(1, rounds);
+    this.allocations  = allocations;
+  }
+
+  public @NonNull String measure(@NonNull String name, long items, @NonNull Body body) throws Exception {
+    return measure(name, items, () -> {}, body);
+  }
+
+  /**
+   * @param items number of items one round of the body handles.
+   * @param reset runs unmeasured before every round, for example to delete the output of the last one.
+   */
+  public @NonNull String measure(@NonNull String name, long items, @NonNull Body reset, @NonNull Body body) throws Exception {
+    for (int i = 0; i < warmupRounds; i++) {
+      reset.run();
+      body.run();
+    }
+
+    long[]  nanos     = new long[rounds];
+    long    allocated = 0;
+    boolean counted   = true;
+
+    for (int i = 0; i < rounds; i++) {
+      reset.run();
+
+      long startAllocated = allocations.allocatedBytes();
+      long start          = System.nanoTime();
+      body.run();
+      nanos[i] = System.nanoTime() - start;
+      long endAllocated = allocations.allocatedBytes();
+
+      if (startAllocated < 0 || endAllocated < 0) counted = false;
+      else                                        allocated += endAllocated - startAllocated;
+    }
+
+    Arrays.sort(nanos);
+    long median = nanos[rounds / 2];
+
+    String report = String.format(Locale.ROOT,
+                                  "{\"suite\":\"%s\",\"case\":\"%s\",\"items\":%d,\"rounds\":%d,\"medianNs\":%d,\"minNs\":%d," +
+                                  "\"itemsPerSecond\":%d,\"allocatedBytesPerItem\":%d}",
+                                  suite, name, items, rounds, median, nanos[0],
+                                  median > 0 ? items * 1_000_000_000L / median : -1,
+                                  counted && items > 0 ? allocated / rounds / items : -1);
+
+    reports.add(report);
+    System.out.println(REPORT_PREFIX + report);
+    return report;
+  }
+
+  public @NonNull List<String> getReports() {
+    return Collections.unmodifiableList(reports);
+  }
+
+  /**
+   * Appends the reports as JSON lines, so the results of several runs can be compared.
+   */
+  public void appendReports(@NonNull File file) throws IOException {
+    File parent = file.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent.getAbsolutePath());
+    }
+
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+      for (String report : reports) {
+        out.write(report);
+        out.write('\n');
+      }
+    }
+  }
+}